@@ -0,0 +1,67 @@
+package com.vitorpamplona.bleavertiser;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Byte-exact size of the advertising data {@code buildAdvertiseData()} produces.
+ *
+ * Mirrors the stack's own accounting (BluetoothLeAdvertiser.totalBytes): every AD structure costs
+ * a length and a type byte, the flags structure is added for connectable advertising, and a
+ * service UUID on the Bluetooth base UUID goes out in its 16- or 32-bit form. What is left of
+ * the advertising limit is the room for the manufacturer payload.
+ */
+final class AdvertiseDataLayout {
+
+    static final int FIELD_OVERHEAD = 2;     // length + AD type
+    static final int FLAGS_BYTES = FIELD_OVERHEAD + 1;
+    static final int COMPANY_ID_BYTES = 2;
+
+    // One AD structure's length byte covers its type and data, so no structure exceeds 255 bytes
+    static final int MAX_MANUFACTURER_PAYLOAD = 255 - 1 - COMPANY_ID_BYTES;
+
+    // 0000xxxx-0000-1000-8000-00805F9B34FB
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private AdvertiseDataLayout() {
+    }
+
+    /**
+     * Bytes the stack sends for {@code uuid}: 2, 4 or 16.
+     */
+    static int uuidLength(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB) return 16;
+        long msb = uuid.getMostSignificantBits();
+        if ((msb & 0xFFFF0000FFFFFFFFL) == BASE_UUID_MSB) return 2;
+        if ((msb & 0xFFFFFFFFL) == BASE_UUID_MSB) return 4;
+        return 16;
+    }
+
+    /**
+     * Everything but the manufacturer payload.
+     *
+     * @param deviceName the adapter name when the name is included, null otherwise.
+     */
+    static int overhead(UUID serviceUuid, boolean connectable, boolean includeTxPowerLevel, String deviceName) {
+        int size = connectable ? FLAGS_BYTES : 0;
+        size += FIELD_OVERHEAD + uuidLength(serviceUuid);
+        size += FIELD_OVERHEAD + COMPANY_ID_BYTES;
+        if (includeTxPowerLevel) {
+            size += FIELD_OVERHEAD + 1;
+        }
+        if (deviceName != null) {
+            size += FIELD_OVERHEAD + deviceName.getBytes(Charset.forName("UTF-8")).length;
+        }
+        return size;
+    }
+
+    /**
+     * Manufacturer payload bytes that fit in {@code maxAdvertisingLength}; 0 or less when none do.
+     */
+    static int maxPayload(int maxAdvertisingLength, UUID serviceUuid, boolean connectable,
+                          boolean includeTxPowerLevel, String deviceName) {
+        int free = maxAdvertisingLength - overhead(serviceUuid, connectable, includeTxPowerLevel, deviceName);
+        return Math.min(MAX_MANUFACTURER_PAYLOAD, free);
+    }
+}
@@ -0,0 +1,47 @@
+package com.vitorpamplona.bleavertiser;
+
+/**
+ * Advertising limits measured by {@link AdvertisingCapabilityProbe}, as whole advertising data
+ * lengths: every AD structure counts, not just the manufacturer payload.
+ */
+class AdvertisingCapabilities {
+
+    public static final int LEGACY_MAX_LENGTH = 31;
+
+    final int maxLegacyLength;
+    final int maxExtendedLength;       // 0 when extended advertising is unavailable
+    final boolean extendedSupported;
+    final boolean le2MPhySupported;
+    final boolean codedPhySupported;
+    final long probeDurationMs;
+    final boolean fromCache;
+
+    AdvertisingCapabilities(int maxLegacyLength, int maxExtendedLength, boolean extendedSupported,
+                            boolean le2MPhySupported, boolean codedPhySupported, long probeDurationMs) {
+        this(maxLegacyLength, maxExtendedLength, extendedSupported, le2MPhySupported, codedPhySupported,
+             probeDurationMs, false);
+    }
+
+    AdvertisingCapabilities(int maxLegacyLength, int maxExtendedLength, boolean extendedSupported,
+                            boolean le2MPhySupported, boolean codedPhySupported, long probeDurationMs,
+                            boolean fromCache) {
+        this.maxLegacyLength = maxLegacyLength;
+        this.maxExtendedLength = maxExtendedLength;
+        this.extendedSupported = extendedSupported;
+        this.le2MPhySupported = le2MPhySupported;
+        this.codedPhySupported = codedPhySupported;
+        this.probeDurationMs = probeDurationMs;
+        this.fromCache = fromCache;
+    }
+
+    /**
+     * Defaults used before any probe ran, or when the adapter cannot advertise at all.
+     */
+    static AdvertisingCapabilities defaults() {
+        return new AdvertisingCapabilities(LEGACY_MAX_LENGTH, 0, false, false, false, 0);
+    }
+
+    int getMaxAdvertisingLength() {
+        return maxExtendedLength > LEGACY_MAX_LENGTH ? maxExtendedLength : maxLegacyLength;
+    }
+}
@@ -0,0 +1,319 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * Binary-searches the largest manufacturer payload the controller accepts, without blocking.
+ *
+ * Every step starts a test advertiser and returns; the advertiser callback (or a 500 ms timeout)
+ * posts the outcome back to the probe looper, which stops the test advertiser and schedules the
+ * next step 50 ms later. Extended advertising is searched first (32..1650 bytes); legacy
+ * advertising (20..23 bytes) is only searched when extended advertising is unavailable.
+ *
+ * The search runs over the test payload, but the limits it reports are whole advertisements:
+ * the payload plus the test layout around it, see {@link #advertisementLength(int)}.
+ */
+class AdvertisingCapabilityProbe {
+
+    private static final String TAG = BLEAdvertiserModule.TAG;
+
+    private static final long STEP_TIMEOUT_MS = 500;
+    private static final long STEP_DELAY_MS = 50;
+    static final UUID TEST_UUID = UUID.fromString("00001234-0000-1000-8000-00805f9b34fb");
+
+    private enum Stage { EXTENDED, LEGACY, DONE }
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothLeAdvertiser mAdvertiser;
+    private final Handler mHandler;
+    private final int mCompanyId;
+    private final CapabilitiesFuture mFuture;
+
+    private Stage mStage;
+    private int mLow;
+    private int mHigh;
+    private int mBest;
+    private int mStep;             // identifies the in-flight step so late callbacks can be ignored
+    private int mExtendedMax;
+    private long mStartedAt;
+    private boolean mCancelled;
+    private Runnable mTimeout;
+
+    private final Runnable mNextStep = new Runnable() {
+        @Override
+        public void run() {
+            nextStep();
+        }
+    };
+
+    AdvertisingCapabilityProbe(BluetoothAdapter adapter, Looper looper, int companyId, CapabilitiesFuture future) {
+        mAdapter = adapter;
+        mAdvertiser = adapter.getBluetoothLeAdvertiser();
+        mHandler = new Handler(looper);
+        mCompanyId = companyId;
+        mFuture = future;
+    }
+
+    void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStartedAt = SystemClock.elapsedRealtime();
+                Log.i(TAG, "Testing device advertising capabilities...");
+
+                if (mAdvertiser == null) {
+                    Log.w(TAG, "No advertiser available, using default max: " + AdvertisingCapabilities.LEGACY_MAX_LENGTH);
+                    finish(AdvertisingCapabilities.LEGACY_MAX_LENGTH);
+                    return;
+                }
+
+                if (isExtendedSupported()) {
+                    Log.i(TAG, "Testing extended advertising...");
+                    enterStage(Stage.EXTENDED, 32, 1650);
+                } else {
+                    Log.i(TAG, "Testing legacy advertising...");
+                    enterStage(Stage.LEGACY, 20, maxLegacyTestLength());
+                }
+            }
+        });
+    }
+
+    /**
+     * Abandons the search. The future is left untouched so a replacement probe can complete it.
+     */
+    void cancel() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCancelled = true;
+                mStep++;
+                mHandler.removeCallbacks(mTimeout);
+                mHandler.removeCallbacks(mNextStep);
+            }
+        });
+    }
+
+    /**
+     * Advertising data bytes a test advertisement with {@code payloadLength} bytes of
+     * manufacturer data takes: a 16-bit service UUID, the company id, no flags (the tests are
+     * not connectable), no TX power or name.
+     */
+    static int advertisementLength(int payloadLength) {
+        return payloadLength + AdvertiseDataLayout.overhead(TEST_UUID, false, false, null);
+    }
+
+    private static int maxLegacyTestLength() {
+        return AdvertisingCapabilities.LEGACY_MAX_LENGTH - advertisementLength(0);
+    }
+
+    private boolean isExtendedSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mAdapter.isLeExtendedAdvertisingSupported();
+    }
+
+    private void enterStage(Stage stage, int low, int high) {
+        mStage = stage;
+        mLow = low;
+        mHigh = high;
+        // An extended search where every step fails must fall through to legacy, not report `low`.
+        mBest = stage == Stage.EXTENDED ? 0 : low;
+        nextStep();
+    }
+
+    private void nextStep() {
+        if (mCancelled) return;
+
+        if (mLow > mHigh) {
+            onStageFinished();
+            return;
+        }
+
+        final int step = ++mStep;
+        int testLength = (mLow + mHigh) / 2;
+        final byte[] testData = new byte[testLength];
+        for (int i = 0; i < testLength; i++) {
+            testData[i] = (byte)(i % 256);
+        }
+
+        mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                onStepResult(step, testData.length, false, null);
+            }
+        };
+        mHandler.postDelayed(mTimeout, STEP_TIMEOUT_MS);
+
+        try {
+            if (mStage == Stage.EXTENDED) {
+                startExtendedTest(step, testData);
+            } else {
+                startLegacyTest(step, testData);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error testing advertising length " + testLength, e);
+            onStepResult(step, testLength, false, null);
+        }
+    }
+
+    private void onStepResult(int step, int testLength, boolean success, Object startedCallback) {
+        if (step != mStep || mCancelled) {
+            // Timed out already: make sure a late success does not leave the test advertiser running.
+            if (success) stopTest(startedCallback);
+            return;
+        }
+
+        mStep++;
+        mHandler.removeCallbacks(mTimeout);
+
+        if (success) {
+            stopTest(startedCallback);
+            mBest = testLength;
+            mLow = testLength + 1;
+        } else {
+            mHigh = testLength - 1;
+        }
+
+        mHandler.postDelayed(mNextStep, STEP_DELAY_MS);
+    }
+
+    private void onStageFinished() {
+        if (mStage == Stage.EXTENDED) {
+            mExtendedMax = mBest > 0 ? advertisementLength(mBest) : 0;
+            if (mExtendedMax > AdvertisingCapabilities.LEGACY_MAX_LENGTH) {
+                Log.w(TAG, "Device supports extended advertising with max: " + mExtendedMax + " bytes");
+                finish(AdvertisingCapabilities.LEGACY_MAX_LENGTH);
+                return;
+            }
+
+            mExtendedMax = 0;
+            Log.i(TAG, "Testing legacy advertising...");
+            enterStage(Stage.LEGACY, 20, maxLegacyTestLength());
+            return;
+        }
+
+        int legacyMax = advertisementLength(mBest);
+        Log.w(TAG, "Device max advertising length: " + legacyMax + " bytes (legacy mode)");
+        finish(legacyMax);
+    }
+
+    private void finish(int legacyMax) {
+        mStage = Stage.DONE;
+
+        boolean extended = false;
+        boolean le2M = false;
+        boolean coded = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            extended = mAdapter.isLeExtendedAdvertisingSupported();
+            le2M = mAdapter.isLe2MPhySupported();
+            coded = mAdapter.isLeCodedPhySupported();
+        }
+
+        mFuture.complete(new AdvertisingCapabilities(legacyMax, mExtendedMax, extended, le2M, coded,
+                SystemClock.elapsedRealtime() - mStartedAt));
+    }
+
+    private void stopTest(Object callback) {
+        try {
+            if (callback instanceof AdvertiseCallback) {
+                mAdvertiser.stopAdvertising((AdvertiseCallback) callback);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && callback instanceof AdvertisingSetCallback) {
+                mAdvertiser.stopAdvertisingSet((AdvertisingSetCallback) callback);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error stopping test advertiser", e);
+        }
+    }
+
+    private AdvertiseData buildTestData(byte[] testData) {
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+        dataBuilder.setIncludeDeviceName(false);
+        dataBuilder.setIncludeTxPowerLevel(false);
+        dataBuilder.addManufacturerData(mCompanyId, testData);
+        dataBuilder.addServiceUuid(new ParcelUuid(TEST_UUID));
+        return dataBuilder.build();
+    }
+
+    private void startLegacyTest(final int step, final byte[] testData) {
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+            .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
+            .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
+            .setConnectable(false)
+            .setTimeout(0)
+            .build();
+
+        AdvertiseCallback callback = new AdvertiseCallback() {
+            @Override
+            public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+                final AdvertiseCallback self = this;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStepResult(step, testData.length, true, self);
+                    }
+                });
+            }
+
+            @Override
+            public void onStartFailure(int errorCode) {
+                Log.d(TAG, "Advertising failed for length " + testData.length + ", error: " + errorCode);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStepResult(step, testData.length, false, null);
+                    }
+                });
+            }
+        };
+
+        mAdvertiser.startAdvertising(settings, buildTestData(testData), callback);
+    }
+
+    private void startExtendedTest(final int step, final byte[] testData) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            onStepResult(step, testData.length, false, null);
+            return;
+        }
+
+        AdvertisingSetParameters params = new AdvertisingSetParameters.Builder()
+            .setInterval(AdvertisingSetParameters.INTERVAL_MEDIUM)
+            .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_MEDIUM)
+            .setConnectable(false)
+            .setLegacyMode(false)
+            .setPrimaryPhy(BluetoothDevice.PHY_LE_1M)
+            .setSecondaryPhy(BluetoothDevice.PHY_LE_1M)
+            .build();
+
+        AdvertisingSetCallback callback = new AdvertisingSetCallback() {
+            @Override
+            public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, final int status) {
+                final AdvertisingSetCallback self = this;
+                if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                    Log.d(TAG, "Extended advertising failed, status: " + status);
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStepResult(step, testData.length, status == AdvertisingSetCallback.ADVERTISE_SUCCESS, self);
+                    }
+                });
+            }
+        };
+
+        mAdvertiser.startAdvertisingSet(params, buildTestData(testData), null, null, null, callback);
+    }
+}
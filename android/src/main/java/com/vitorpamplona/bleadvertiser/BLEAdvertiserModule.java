@@ -14,6 +14,7 @@ import com.facebook.soloader.SoLoader;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.util.Base64;
 import android.util.Log;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
@@ -22,6 +23,7 @@ import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
@@ -36,12 +38,18 @@ import android.content.IntentFilter;
 import android.os.ParcelUuid;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.bridge.WritableMap;
+import com.vitorpamplona.bleavertiser.codec.FragmentDecoder;
+import com.vitorpamplona.bleavertiser.codec.FragmentEncoder;
+import com.vitorpamplona.bleavertiser.codec.MessageCompression;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.lang.Thread;
@@ -49,6 +57,7 @@ import java.lang.Object;
 import java.util.Hashtable;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
@@ -64,22 +73,59 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
     private static Hashtable<String, Runnable> mPacketRotationRunnables;
     private static BluetoothLeScanner mScanner;
     private static ScanCallback mScannerCallback;
+
+    // Every scan is a session; the hardware scan serves their union and results are matched back
+    private final ScanSessions mScanSessions = new ScanSessions();
+    private int mNextScanSessionId = ScanSessions.DEFAULT_SESSION + 1;
+    private Set<ScanFilter> mHardwareFilters;
+    private ScanSessions.Settings mHardwareSettings; // null while no hardware scan runs
     private int companyId;
     private Boolean mObservedState;
-    private int mCachedMaxAdvertisingLength = 31; // Default to legacy max
-    
-    // Packet reassembly structures
-    private static class PacketBuffer {
-        byte totalPackets;
-        byte packetId;
-        Map<Integer, byte[]> packets = new HashMap<>();
-        long firstSeenTime = System.currentTimeMillis();
-    }
+    private int mCachedMaxAdvertisingLength = AdvertisingCapabilities.LEGACY_MAX_LENGTH; // Default to legacy max
+
+    // Capability probing runs on its own looper; callers wait on the shared future instead of the constructor
+    private HandlerThread mWorkerThread;
+    private volatile CapabilitiesFuture mCapabilitiesFuture = CapabilitiesFuture.completed(AdvertisingCapabilities.defaults());
+    private AdvertisingCapabilityProbe mCapabilityProbe;
+    private CapabilityCache mCapabilityCache;
     
-    private static Hashtable<String, PacketBuffer> mPacketBuffers = new Hashtable<>();
+    // Packet reassembly structures, one of each per scan worker
+    private static final int REASSEMBLY_CAPACITY = 256; // messages reassembled at once
     private static final long PACKET_TIMEOUT_MS = 10000; // 10 seconds timeout for incomplete packets
-    private static Handler mPacketCleanupHandler = new Handler();
-    private static Runnable mPacketCleanupRunnable;
+
+    // Messages already delivered to JS, so the sender's rotation does not re-emit them every cycle
+    private static final int COMPLETED_MESSAGE_CAPACITY = 1024;
+    private static final long DEFAULT_REEMIT_INTERVAL_MS = 5000;
+
+    // Scan results are parsed on worker threads; set while a scan is running
+    private static final int DEFAULT_SCAN_QUEUE_CAPACITY = 1024;
+    private volatile ScanPipeline mScanPipeline;
+
+    // Set while a scan asked for batched delivery; null sends one onDeviceFound per result
+    private volatile ScanEventBatcher mScanEventBatcher;
+
+    // How the running scan hands payloads to JS
+    private volatile boolean mBase64Payloads;
+    private volatile int mScanFields = ScanFields.DEFAULT;
+
+    // RSSI at 1 m for distance estimates; Integer.MIN_VALUE derives it from the advertised TX power
+    private volatile int mReferenceRssi = Integer.MIN_VALUE;
+
+    // Set while a scan delivers through drainScanRecords(); kept after stopScan until the next scan
+    private static final int DEFAULT_RING_CAPACITY = 1024;
+    private static final int DEFAULT_RING_PAYLOAD_CAPACITY = 255;
+    private volatile ScanRecordRing mScanRecordRing;
+
+    // Per-sender multi-packet message ids, from a random start
+    private final AtomicInteger mNextPacketId = new AtomicInteger((int) (Math.random() * 0x10000));
+
+    // Dictionaries shared by broadcast() and every scan worker's decoder
+    private final MessageCompression mCompression = new MessageCompression();
+
+    // Counters behind getStats(); the optional onStats event is posted on the worker looper
+    private final PerformanceCounters mCounters = new PerformanceCounters();
+    private Handler mStatsHandler;
+    private long mStatsIntervalMs;
 
     //Constructor
     public BLEAdvertiserModule(ReactApplicationContext reactContext) {
@@ -91,7 +137,9 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         mAdvertisingSetCallbackList = new Hashtable<String, AdvertisingSetCallback>();
         mPacketRotationHandlers = new Hashtable<String, Handler>();
         mPacketRotationRunnables = new Hashtable<String, Runnable>();
-        mPacketBuffers = new Hashtable<String, PacketBuffer>();
+
+        mWorkerThread = new HandlerThread("BLEAdvertiserWorker");
+        mWorkerThread.start();
 
         BluetoothManager bluetoothManager = (BluetoothManager) reactContext.getApplicationContext()
                 .getSystemService(Context.BLUETOOTH_SERVICE);
@@ -101,10 +149,11 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
 
         if (mBluetoothAdapter != null) {
             mObservedState = mBluetoothAdapter.isEnabled();
+            mCapabilityCache = new CapabilityCache(reactContext, mBluetoothAdapter);
             
-            // Test and cache the max advertising length on initialization
+            // Load the cached max advertising length, or test it in the background
             if (mObservedState) {
-                testAndCacheMaxAdvertisingLength();
+                startCapabilityProbe(false);
             }
         }
 
@@ -112,110 +161,64 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
 
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         reactContext.registerReceiver(mReceiver, filter);
-        
-        // Start packet cleanup timer
-        startPacketCleanupTimer();
     }
     
-    private void startPacketCleanupTimer() {
-        mPacketCleanupRunnable = new Runnable() {
-            @Override
-            public void run() {
-                cleanupOldPackets();
-                mPacketCleanupHandler.postDelayed(this, 5000); // Run every 5 seconds
-            }
-        };
-        mPacketCleanupHandler.postDelayed(mPacketCleanupRunnable, 5000);
-    }
-    
-    private void cleanupOldPackets() {
-        long now = System.currentTimeMillis();
-        Set<String> keysToRemove = new HashSet<>();
-        
-        for (Map.Entry<String, PacketBuffer> entry : mPacketBuffers.entrySet()) {
-            if (now - entry.getValue().firstSeenTime > PACKET_TIMEOUT_MS) {
-                keysToRemove.add(entry.getKey());
-                Log.w(TAG, "Removing incomplete packet buffer for device: " + entry.getKey());
-            }
+    private synchronized void startCapabilityProbe(boolean force) {
+        if (mCapabilityProbe != null) {
+            mCapabilityProbe.cancel();
+            mCapabilityProbe = null;
         }
-        
-        for (String key : keysToRemove) {
-            mPacketBuffers.remove(key);
+
+        // Keep the pending future if a probe was already in flight, so its waiters are not stranded
+        if (mCapabilitiesFuture.isDone()) {
+            mCapabilitiesFuture = new CapabilitiesFuture();
+            mCapabilitiesFuture.whenReady(new CapabilitiesFuture.Listener() {
+                @Override
+                public void onReady(AdvertisingCapabilities capabilities) {
+                    onCapabilitiesReady(capabilities);
+                }
+            });
         }
-    }
-    
-    private void testAndCacheMaxAdvertisingLength() {
-        Log.i(TAG, "Testing device advertising capabilities...");
-        
-        BluetoothLeAdvertiser advertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
-        if (advertiser == null) {
-            Log.w(TAG, "No advertiser available, using default max: 31");
-            mCachedMaxAdvertisingLength = 31;
+
+        // Warm start: a measurement from this adapter, OS build and module version needs no radio time
+        AdvertisingCapabilities cached = force ? null : mCapabilityCache.load();
+        if (cached != null) {
+            Log.i(TAG, "Using cached advertising capabilities");
+            mCapabilitiesFuture.complete(cached);
             return;
         }
-        
-        boolean extendedSupported = false;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            extendedSupported = mBluetoothAdapter.isLeExtendedAdvertisingSupported();
+
+        mCapabilityProbe = new AdvertisingCapabilityProbe(mBluetoothAdapter, mWorkerThread.getLooper(),
+                companyId, mCapabilitiesFuture);
+        mCapabilityProbe.start();
+    }
+
+    private void onCapabilitiesReady(AdvertisingCapabilities capabilities) {
+        mCachedMaxAdvertisingLength = capabilities.getMaxAdvertisingLength();
+        mCounters.recordProbeDuration(capabilities.probeDurationMs);
+        Log.i(TAG, "Advertising capabilities ready in " + capabilities.probeDurationMs + " ms, max: " + mCachedMaxAdvertisingLength + " bytes");
+
+        if (!capabilities.fromCache) {
+            mCapabilityCache.store(capabilities);
         }
-        
-        // Test extended advertising first if supported
-        if (extendedSupported && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            Log.i(TAG, "Testing extended advertising...");
-            int extendedMax = binarySearchMaxLength(advertiser, 32, 1650, true);
-            
-            if (extendedMax > 31) {
-                // Extended advertising works, use this as our max
-                mCachedMaxAdvertisingLength = extendedMax;
-                Log.w(TAG, "Device supports extended advertising with max: " + extendedMax + " bytes");
-                return; // No need to test legacy
-            }
+
+        // The first probe can finish before the JS side is up
+        if (getReactApplicationContext().hasActiveCatalystInstance()) {
+            sendEvent("onCapabilitiesReady", toWritableMap(capabilities));
         }
-        
-        // If extended didn't work or isn't supported, test legacy
-        Log.i(TAG, "Testing legacy advertising...");
-        int legacyMax = binarySearchMaxLength(advertiser, 20, 31, false);
-        mCachedMaxAdvertisingLength = legacyMax;
-        Log.w(TAG, "Device max advertising length: " + legacyMax + " bytes (legacy mode)");
     }
-    
-    private int binarySearchMaxLength(BluetoothLeAdvertiser advertiser, int minLength, int maxLength, boolean useExtended) {
-        int actualMax = minLength;
-        
-        while (minLength <= maxLength) {
-            int testLength = (minLength + maxLength) / 2;
-            
-            // Create test data of the target length
-            byte[] testData = new byte[testLength];
-            for (int i = 0; i < testLength; i++) {
-                testData[i] = (byte)(i % 256);
-            }
-            
-            // Try to advertise with this length
-            boolean success;
-            if (useExtended) {
-                success = testExtendedAdvertisingLength(advertiser, testData, false, 
-                                                       BluetoothDevice.PHY_LE_1M, BluetoothDevice.PHY_LE_1M);
-            } else {
-                success = testAdvertisingLength(advertiser, testData);
-            }
-            
-            if (success) {
-                actualMax = testLength;
-                minLength = testLength + 1;
-            } else {
-                maxLength = testLength - 1;
-            }
-            
-            // Small delay between tests
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                // Ignore
-            }
-        }
-        
-        return actualMax;
+
+    private WritableMap toWritableMap(AdvertisingCapabilities capabilities) {
+        WritableMap params = Arguments.createMap();
+        params.putInt("maxAdvertisingDataLength", capabilities.getMaxAdvertisingLength());
+        params.putInt("maxLegacyLength", capabilities.maxLegacyLength);
+        params.putInt("maxExtendedLength", capabilities.maxExtendedLength);
+        params.putBoolean("extendedAdvertising", capabilities.extendedSupported);
+        params.putBoolean("le2MPhy", capabilities.le2MPhySupported);
+        params.putBoolean("codedPhy", capabilities.codedPhySupported);
+        params.putDouble("probeDurationMs", capabilities.probeDurationMs);
+        params.putBoolean("fromCache", capabilities.fromCache);
+        return params;
     }
     
     @Override
@@ -244,6 +247,12 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         constants.put("MATCH_NUM_MAX_ADVERTISEMENT",    ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT);
         constants.put("MATCH_NUM_ONE_ADVERTISEMENT",    ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
 
+        constants.put("SCAN_RECORD_HEADER_SIZE",        ScanRecordRing.HEADER_SIZE);
+        constants.put("SCAN_RECORD_FLAG_LEGACY",        ScanRecordRing.FLAG_LEGACY);
+        constants.put("SCAN_RECORD_FLAG_CONNECTABLE",   ScanRecordRing.FLAG_CONNECTABLE);
+        constants.put("SCAN_RECORD_FLAG_REASSEMBLED",   ScanRecordRing.FLAG_REASSEMBLED);
+        constants.put("SCAN_RECORD_FLAG_TRUNCATED",     ScanRecordRing.FLAG_TRUNCATED);
+
         return constants;
     }
 
@@ -253,14 +262,60 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void getMaxAdvertisingDataLength(Promise promise) {
-        // Simply return the cached value
-        Log.i(TAG, "Returning cached max advertising length: " + mCachedMaxAdvertisingLength + " bytes");
-        promise.resolve(mCachedMaxAdvertisingLength);
+    public void registerCompressionDictionary(int id, Dynamic dictionary, Promise promise) {
+        try {
+            mCompression.registerDictionary(id, dictionary == null || dictionary.isNull() ? null : toByteArray(dictionary));
+            promise.resolve(true);
+        } catch (IllegalArgumentException e) {
+            promise.reject(e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getMaxAdvertisingDataLength(final Promise promise) {
+        // Resolves as soon as the background probe (if any) has finished
+        mCapabilitiesFuture.whenReady(new CapabilitiesFuture.Listener() {
+            @Override
+            public void onReady(AdvertisingCapabilities capabilities) {
+                Log.i(TAG, "Returning cached max advertising length: " + mCachedMaxAdvertisingLength + " bytes");
+                promise.resolve(mCachedMaxAdvertisingLength);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void invalidateCapabilitiesCache(Promise promise) {
+        if (mCapabilityCache != null) {
+            mCapabilityCache.invalidate();
+        }
+        promise.resolve(true);
+    }
+
+    @ReactMethod
+    public void reprobeCapabilities(final Promise promise) {
+        if (mBluetoothAdapter == null) {
+            Log.w("BLEAdvertiserModule", "Device does not support Bluetooth. Adapter is Null");
+            promise.reject("Device does not support Bluetooth. Adapter is Null");
+            return;
+        }
+
+        if (mObservedState != null && !mObservedState) {
+            Log.w("BLEAdvertiserModule", "Bluetooth disabled");
+            promise.reject("Bluetooth disabled");
+            return;
+        }
+
+        startCapabilityProbe(true);
+        mCapabilitiesFuture.whenReady(new CapabilitiesFuture.Listener() {
+            @Override
+            public void onReady(AdvertisingCapabilities capabilities) {
+                promise.resolve(toWritableMap(capabilities));
+            }
+        });
     }
     
     @ReactMethod
-    public void broadcast(String uid, ReadableArray payload, ReadableMap options, Promise promise) {
+    public void broadcast(final String uid, final Dynamic payload, final ReadableMap options, final Promise promise) {
         if (mBluetoothAdapter == null) {
             Log.w("BLEAdvertiserModule", "Device does not support Bluetooth. Adapter is Null");
             promise.reject("Device does not support Bluetooth. Adapter is Null");
@@ -285,61 +340,167 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
             return;
         }
 
-        // Convert payload to byte array first
-        byte[] payloadBytes = toByteArray(payload);
-        
-        // Calculate overhead for BLE packet structure
-        // Service UUID (3 bytes structure + 16 bytes UUID) + Manufacturer data structure (3 bytes) + company ID (2 bytes)
-        int bleOverhead = 27; // Approximate overhead
-        int maxPayloadSize = mCachedMaxAdvertisingLength - bleOverhead;
+        // A number[] or a base64 string; either way it is converted once, here
+        final byte[] payloadBytes;
+        try {
+            payloadBytes = toByteArray(payload);
+        } catch (IllegalArgumentException e) {
+            promise.reject("Invalid payload: " + e.getMessage());
+            return;
+        }
+
+        // The packet size depends on the probed limits, so wait for them without blocking this thread
+        mCapabilitiesFuture.whenReady(new CapabilitiesFuture.Listener() {
+            @Override
+            public void onReady(AdvertisingCapabilities capabilities) {
+                broadcastWithCapabilities(uid, payloadBytes, capabilities, options, promise);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getMaxPayloadLength(final String uid, final ReadableMap options, final Promise promise) {
+        mCapabilitiesFuture.whenReady(new CapabilitiesFuture.Listener() {
+            @Override
+            public void onReady(AdvertisingCapabilities capabilities) {
+                try {
+                    promise.resolve(maxPayloadLength(capabilities, uid, options, wantsExtendedAdvertising(options)));
+                } catch (IllegalArgumentException e) {
+                    promise.reject("Invalid uid: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private boolean wantsExtendedAdvertising(ReadableMap options) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && 
+               mBluetoothAdapter != null &&
+               options != null && 
+               options.hasKey("useExtendedAdvertising") && 
+               options.getBoolean("useExtendedAdvertising") &&
+               mBluetoothAdapter.isLeExtendedAdvertisingSupported();
+    }
+
+    /**
+     * Manufacturer payload bytes left in one advertisement once buildAdvertiseData() has laid out
+     * everything else for this uid and these options.
+     *
+     * @throws IllegalArgumentException when uid is not a UUID.
+     */
+    private int maxPayloadLength(AdvertisingCapabilities capabilities, String uid, ReadableMap options, boolean extended) {
+        int maxLength = extended ? capabilities.maxExtendedLength : capabilities.maxLegacyLength;
+
+        // AdvertiseSettings are connectable unless told otherwise, AdvertisingSetParameters are not
+        boolean connectable = !extended;
+        if (options != null && options.hasKey("connectable")) {
+            connectable = options.getBoolean("connectable");
+        }
+        boolean includeTxPowerLevel = options != null && options.hasKey("includeTxPowerLevel") && 
+                                      options.getBoolean("includeTxPowerLevel");
+
+        String deviceName = null;
+        if (options != null && options.hasKey("includeDeviceName") && options.getBoolean("includeDeviceName")) {
+            deviceName = mBluetoothAdapter != null ? mBluetoothAdapter.getName() : null;
+            if (deviceName == null) deviceName = "";
+        }
+
+        return AdvertiseDataLayout.maxPayload(maxLength, UUID.fromString(uid), connectable, includeTxPowerLevel, deviceName);
+    }
+
+    private void broadcastWithCapabilities(String uid, byte[] payloadBytes, AdvertisingCapabilities capabilities,
+                                           ReadableMap options, Promise promise) {
+        // Room left by the exact AD layout of this uid and these options
+        boolean useExtendedAdvertising = wantsExtendedAdvertising(options);
+        int maxPayloadSize;
+        try {
+            maxPayloadSize = maxPayloadLength(capabilities, uid, options, useExtendedAdvertising);
+        } catch (IllegalArgumentException e) {
+            promise.reject("Invalid uid: " + e.getMessage());
+            return;
+        }
         
+        // Compress before the size check; the flag travels in the packet header, so compressed payloads are always framed
+        if (options != null && (options.hasKey("compressionDictionary")
+                                || (options.hasKey("compress") && options.getBoolean("compress")))) {
+            // Only the version 2 header has a flag for it, and its CRC guards the inflate on the other side
+            if (!options.hasKey("headerVersion") || options.getInt("headerVersion") != FragmentEncoder.VERSION_2) {
+                promise.reject("compress and compressionDictionary require headerVersion: 2");
+                return;
+            }
+            int dictionary = options.hasKey("compressionDictionary") ? options.getInt("compressionDictionary")
+                                                                     : MessageCompression.NO_DICTIONARY;
+            byte[] compressed;
+            try {
+                compressed = mCompression.compress(payloadBytes, dictionary);
+            } catch (IllegalArgumentException e) {
+                promise.reject(e.getMessage());
+                return;
+            }
+            if (compressed != null) {
+                Log.i(TAG, "Payload compressed from " + payloadBytes.length + " to " + compressed.length + " bytes");
+                broadcastMultiPacket(uid, compressed, maxPayloadSize, true, options, promise);
+                return;
+            }
+        }
+
         Log.i(TAG, "Payload size: " + payloadBytes.length + ", max allowed: " + maxPayloadSize);
         
         // Check if we need to split the payload
         if (payloadBytes.length > maxPayloadSize) {
             Log.w(TAG, "Payload exceeds max size, splitting into multiple packets");
-            broadcastMultiPacket(uid, payloadBytes, maxPayloadSize, options, promise);
+            broadcastMultiPacket(uid, payloadBytes, maxPayloadSize, false, options, promise);
         } else {
             // Original single packet broadcast
             Log.i(TAG, "Payload fits in single packet");
             
-            // Check if we should use extended advertising
-            boolean useExtendedAdvertising = false;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && 
-                options != null && 
-                options.hasKey("useExtendedAdvertising") && 
-                options.getBoolean("useExtendedAdvertising")) {
-                useExtendedAdvertising = mBluetoothAdapter.isLeExtendedAdvertisingSupported();
-            }
-
             if (useExtendedAdvertising) {
-                broadcastExtended(uid, payload, options, promise);
+                broadcastExtended(uid, payloadBytes, options, promise);
             } else {
-                broadcastLegacy(uid, payload, options, promise);
+                broadcastLegacy(uid, payloadBytes, options, promise);
             }
         }
     }
     
-    private void broadcastMultiPacket(String uid, byte[] fullPayload, int maxPacketSize, ReadableMap options, Promise promise) {
+    private void broadcastMultiPacket(String uid, byte[] fullPayload, int maxPacketSize, boolean compressed,
+                                      ReadableMap options, Promise promise) {
         try {
-            // Calculate number of packets needed
-            // Reserve 3 bytes for packet header: [total packets(1)][packet index(1)][packet id(1)]
-            int dataPerPacket = maxPacketSize - 3;
-            int totalPackets = (int) Math.ceil((double) fullPayload.length / dataPerPacket);
-            
-            if (totalPackets > 255) {
-                promise.reject("Payload too large", "Payload requires more than 255 packets");
+            // Parity fragments let receivers rebuild the message without waiting for lost ones to come round
+            double fecRatio = 0;
+            if (options != null && options.hasKey("fecRatio")) {
+                fecRatio = options.getDouble("fecRatio");
+                if (fecRatio < 0 || fecRatio > 1) {
+                    promise.reject("fecRatio must be between 0 and 1");
+                    return;
+                }
+            }
+
+            // Version 1: [total packets(1)][packet index(1)][packet id(1)]
+            // Version 2: [0][version|flags(1)][packet id(2)][total packets(2)][packet index(2)], CRC-32 at the end
+            int headerVersion = FragmentEncoder.VERSION_1;
+            if (options != null && options.hasKey("headerVersion")) {
+                headerVersion = options.getInt("headerVersion");
+            }
+
+            // Ids come from a sequence, so this sender's messages in flight never share one
+            int packetId = mNextPacketId.getAndIncrement();
+
+            FragmentEncoder encoder;
+            try {
+                encoder = new FragmentEncoder(fullPayload, packetId, maxPacketSize, fecRatio, headerVersion, compressed);
+            } catch (IllegalArgumentException e) {
+                promise.reject("Payload too large", e.getMessage());
                 return;
             }
             
-            Log.w(TAG, "Splitting payload into " + totalPackets + " packets");
-            Log.w(TAG, "Bytes per packet: " + dataPerPacket + " (plus 3 byte header)");
+            Log.w(TAG, "Splitting payload into " + encoder.getFragmentCount() + " packets plus "
+                       + encoder.getParityCount() + " parity packets");
+            Log.w(TAG, "Bytes per packet: " + encoder.getDataPerFragment() + " (plus " + encoder.getHeaderSize() + " byte header)");
             
-            // Generate a random packet ID to group packets together
-            byte packetId = (byte)(Math.random() * 256);
+            // Frame every packet now so the rotation timer has nothing left to build
+            FramedMessage message = frameMessage(uid, encoder, compressed, options);
             
             // Start packet rotation
-            startPacketRotation(uid, fullPayload, totalPackets, dataPerPacket, packetId, options, promise);
+            startPacketRotation(uid, message, options, promise);
             
         } catch (Exception e) {
             Log.e(TAG, "Error in multi-packet broadcast", e);
@@ -347,274 +508,187 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         }
     }
     
-    private void startPacketRotation(String uid, byte[] fullPayload, int totalPackets, int dataPerPacket, 
-                                    byte packetId, ReadableMap options, Promise promise) {
-        // Create a timer to rotate through packets
-        final Handler handler = new Handler();
-        final AtomicInteger currentPacketIndex = new AtomicInteger(0);
-        
-        // Store the runnable so we can stop it later
-        final String rotationKey = uid + "_rotation";
-        
-        Runnable packetRotation = new Runnable() {
-            @Override
-            public void run() {
-                int packetIndex = currentPacketIndex.get();
-                
-                if (packetIndex < totalPackets) {
-                    // Calculate data range for this packet
-                    int startIdx = packetIndex * dataPerPacket;
-                    int endIdx = Math.min(startIdx + dataPerPacket, fullPayload.length);
-                    int packetDataLength = endIdx - startIdx;
-                    
-                    // Create packet with header
-                    byte[] packet = new byte[packetDataLength + 3];
-                    packet[0] = (byte) totalPackets;
-                    packet[1] = (byte) packetIndex;
-                    packet[2] = packetId;
-                    
-                    // Copy data
-                    System.arraycopy(fullPayload, startIdx, packet, 3, packetDataLength);
-                    
-                    Log.d(TAG, "Broadcasting packet " + (packetIndex + 1) + "/" + totalPackets + 
-                                      ", size: " + packet.length + " bytes");
-                    
-                    // Convert to ReadableArray
-                    WritableArray packetArray = Arguments.createArray();
-                    for (byte b : packet) {
-                        packetArray.pushInt(b & 0xFF);
-                    }
-                    
-                    // Broadcast this packet
-                    boolean useExtendedAdvertising = false;
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && 
-                        options != null && 
-                        options.hasKey("useExtendedAdvertising") && 
-                        options.getBoolean("useExtendedAdvertising")) {
-                        useExtendedAdvertising = mBluetoothAdapter.isLeExtendedAdvertisingSupported();
-                    }
-                    
-                    if (useExtendedAdvertising) {
-                        broadcastExtended(uid, packetArray, options, null);
-                    } else {
-                        broadcastLegacy(uid, packetArray, options, null);
-                    }
-                    
-                    // Move to next packet
-                    currentPacketIndex.incrementAndGet();
-                    if (currentPacketIndex.get() >= totalPackets) {
-                        currentPacketIndex.set(0); // Loop back to first packet
-                    }
-                    
-                    // Schedule next packet (rotate every 500ms)
-                    handler.postDelayed(this, 500);
-                } else {
-                    // All packets sent, loop back to start
-                    currentPacketIndex.set(0);
-                    handler.postDelayed(this, 500);
-                }
+    private FramedMessage frameMessage(String uid, FragmentEncoder encoder, boolean compressed, ReadableMap options) {
+        ParcelUuid uuid = ParcelUuid.fromString(uid);
+        AdvertiseData[] fragments = new AdvertiseData[encoder.getTotalFragmentCount()];
+        for (int i = 0; encoder.hasNext(); i++) {
+            fragments[i] = buildAdvertiseData(uuid, encoder.next(), options);
+        }
+
+        AdvertisingSetParameters parameters = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            parameters = buildAdvertisingSetParameters(options);
+        }
+
+        return new FramedMessage(fragments, buildAdvertiseSettings(options), parameters, encoder.getDataPerFragment(),
+                                 encoder.getParityCount(), encoder.getMessageId(), encoder.getHeaderVersion(), compressed);
+    }
+
+    private void startPacketRotation(String uid, FramedMessage message, ReadableMap options, Promise promise) {
+        boolean useExtendedAdvertising = wantsExtendedAdvertising(options);
+
+        // Extended sets can swap their data without a controller teardown, unless the caller opts out
+        boolean inPlaceRotation = useExtendedAdvertising;
+        if (options != null && options.hasKey("inPlaceRotation")) {
+            inPlaceRotation = inPlaceRotation && options.getBoolean("inPlaceRotation");
+        }
+
+        // Spreading fragments over concurrent sets needs the AdvertisingSet API
+        boolean parallel = useExtendedAdvertising && options != null && 
+                           options.hasKey("parallelAdvertising") && options.getBoolean("parallelAdvertising");
+
+        RotationSchedule schedule = buildRotationSchedule(message, options, useExtendedAdvertising);
+
+        // Whatever was advertising under this uid is replaced by the rotation
+        stopAdvertiser(uid);
+
+        if (parallel) {
+            int maxSets = message.totalPackets;
+            if (options.hasKey("maxParallelSets")) {
+                maxSets = Math.max(1, Math.min(maxSets, options.getInt("maxParallelSets")));
             }
-        };
-        
-        // Store the handler so we can stop it on stopBroadcast
-        mPacketRotationHandlers.put(rotationKey, handler);
-        mPacketRotationRunnables.put(rotationKey, packetRotation);
-        
-        // Start the rotation
-        handler.post(packetRotation);
+            // Resolves once the number of available sets is known
+            startParallelRotation(uid, message, schedule, maxSets, promise);
+            return;
+        }
+
+        if (inPlaceRotation) {
+            startInPlaceRotation(uid, message, schedule);
+        } else {
+            startRestartRotation(uid, message, useExtendedAdvertising, schedule);
+        }
         
+        promise.resolve(rotationResult(message, schedule, inPlaceRotation, 1));
+    }
+
+    private WritableMap rotationResult(FramedMessage message, RotationSchedule schedule, boolean inPlaceRotation, int parallelSets) {
         // Return success with packet info
         WritableMap result = Arguments.createMap();
-        result.putInt("totalPackets", totalPackets);
-        result.putInt("packetId", packetId & 0xFF);
-        result.putInt("dataPerPacket", dataPerPacket);
+        result.putInt("totalPackets", message.totalPackets);
+        result.putInt("parityPackets", message.parityPackets);
+        result.putInt("packetId", message.packetId);
+        result.putInt("headerVersion", message.headerVersion);
+        result.putBoolean("compressed", message.compressed);
+        result.putInt("dataPerPacket", message.dataPerPacket);
+        result.putBoolean("inPlaceRotation", inPlaceRotation);
+        result.putInt("parallelSets", parallelSets);
+        result.putBoolean("adaptiveRotation", schedule.isAdaptive());
+        result.putDouble("rotationInterval", schedule.nextDelayMs());
         result.putString("status", "multi_packet_broadcast_started");
-        promise.resolve(result);
+        return result;
     }
-    
-    private boolean testAdvertisingLength(BluetoothLeAdvertiser advertiser, byte[] testData) {
-        final Object lock = new Object();
-        final boolean[] result = {false};
-        final boolean[] callbackReceived = {false};
-        
-        try {
-            // Build advertise settings - EXACTLY matching your usage
-            AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED) // You use BALANCED
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-                .setConnectable(false)
-                .setTimeout(0)
-                .build();
-            
-            // Build advertise data with our test payload
-            AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
-            dataBuilder.setIncludeDeviceName(false);
-            dataBuilder.setIncludeTxPowerLevel(false);
-            
-            // Add manufacturer data with your company ID
-            dataBuilder.addManufacturerData(companyId, testData);
-            
-            // Add service UUID just like in your actual usage
-            dataBuilder.addServiceUuid(ParcelUuid.fromString("00001234-0000-1000-8000-00805f9b34fb"));
-            
-            AdvertiseData data = dataBuilder.build();
-            
-            // Test advertise with callback
-            AdvertiseCallback testCallback = new AdvertiseCallback() {
-                @Override
-                public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-                    synchronized (lock) {
-                        result[0] = true;
-                        callbackReceived[0] = true;
-                        lock.notify();
-                    }
-                }
-                
-                @Override
-                public void onStartFailure(int errorCode) {
-                    synchronized (lock) {
-                        result[0] = false;
-                        callbackReceived[0] = true;
-                        String errorMsg = "Unknown error";
-                        switch (errorCode) {
-                            case ADVERTISE_FAILED_DATA_TOO_LARGE:
-                                errorMsg = "Data too large";
-                                break;
-                            case ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
-                                errorMsg = "Too many advertisers";
-                                break;
-                            case ADVERTISE_FAILED_ALREADY_STARTED:
-                                errorMsg = "Already started";
-                                break;
-                            case ADVERTISE_FAILED_INTERNAL_ERROR:
-                                errorMsg = "Internal error";
-                                break;
-                            case ADVERTISE_FAILED_FEATURE_UNSUPPORTED:
-                                errorMsg = "Feature unsupported";
-                                break;
-                        }
-                        Log.d(TAG, "Advertising failed for length " + testData.length + ": " + errorMsg);
-                        lock.notify();
-                    }
-                }
-            };
-            
-            // Use legacy advertising
-            advertiser.startAdvertising(settings, data, testCallback);
-            
-            // Wait for callback with timeout
-            synchronized (lock) {
-                if (!callbackReceived[0]) {
-                    try {
-                        lock.wait(500); // 500ms timeout
-                    } catch (InterruptedException e) {
-                        // Ignore
-                    }
-                }
-            }
-            
-            // Stop advertising if it started
-            if (result[0]) {
-                advertiser.stopAdvertising(testCallback);
-            }
-            
-            return result[0];
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error testing advertising length " + testData.length, e);
-            return false;
+
+    private RotationSchedule buildRotationSchedule(FramedMessage message, ReadableMap options, boolean useExtendedAdvertising) {
+        long rotationInterval = RotationSchedule.DEFAULT_INTERVAL_MS;
+        if (options != null && options.hasKey("rotationInterval")) {
+            rotationInterval = options.getInt("rotationInterval");
         }
+
+        boolean adaptive = options != null && options.hasKey("adaptiveRotation") && options.getBoolean("adaptiveRotation");
+
+        int repetitions = RotationSchedule.DEFAULT_REPETITIONS;
+        if (options != null && options.hasKey("repetitionsPerFragment")) {
+            repetitions = options.getInt("repetitionsPerFragment");
+        }
+
+        // Requested interval until the stack reports the one in effect
+        long advertisingInterval;
+        if (useExtendedAdvertising) {
+            advertisingInterval = RotationSchedule.intervalForSetInterval(message.parameters.getInterval());
+        } else {
+            advertisingInterval = RotationSchedule.intervalForAdvertiseMode(message.settings.getMode());
+        }
+
+        return new RotationSchedule(rotationInterval, adaptive, repetitions, advertisingInterval);
     }
-    
-    private boolean testExtendedAdvertisingLength(BluetoothLeAdvertiser advertiser, byte[] testData, 
-                                                  boolean includeScanResponse, int primaryPhy, int secondaryPhy) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            return false;
+
+    private void stopAdvertiser(String uid) {
+        BluetoothLeAdvertiser advertiser = mAdvertiserList.remove(uid);
+        AdvertiseCallback callback = mAdvertiserCallbackList.remove(uid);
+        if (advertiser != null && callback != null) {
+            advertiser.stopAdvertising(callback);
+            mCounters.increment(PerformanceCounters.ADVERTISER_STOPS);
         }
-        
-        final Object lock = new Object();
-        final boolean[] result = {false};
-        final boolean[] callbackReceived = {false};
-        
-        try {
-            ExtendedAdvertiseCallback callback = new ExtendedAdvertiseCallback("test", null) {
-                @Override
-                public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
-                    synchronized (lock) {
-                        result[0] = (status == AdvertisingSetCallback.ADVERTISE_SUCCESS);
-                        callbackReceived[0] = true;
-                        if (!result[0]) {
-                            Log.d(TAG, "Extended advertising failed, status: " + status);
-                        }
-                        lock.notify();
-                    }
-                }
-            };
-            
-            // Build parameters for extended advertising
-            AdvertisingSetParameters.Builder paramsBuilder = new AdvertisingSetParameters.Builder();
-            paramsBuilder.setInterval(AdvertisingSetParameters.INTERVAL_MEDIUM);
-            paramsBuilder.setTxPowerLevel(AdvertisingSetParameters.TX_POWER_MEDIUM);
-            paramsBuilder.setConnectable(false);
-            paramsBuilder.setLegacyMode(false); // Enable extended advertising
-            paramsBuilder.setPrimaryPhy(primaryPhy);
-            paramsBuilder.setSecondaryPhy(secondaryPhy);
-            
-            if (includeScanResponse) {
-                paramsBuilder.setScannable(true);
-            }
-            
-            AdvertisingSetParameters params = paramsBuilder.build();
-            
-            // Build advertise data
-            AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
-            dataBuilder.setIncludeDeviceName(false);
-            dataBuilder.setIncludeTxPowerLevel(false);
-            dataBuilder.addManufacturerData(companyId, testData);
-            dataBuilder.addServiceUuid(ParcelUuid.fromString("00001234-0000-1000-8000-00805f9b34fb"));
-            AdvertiseData data = dataBuilder.build();
-            
-            // Build scan response if needed
-            AdvertiseData scanResponse = null;
-            if (includeScanResponse) {
-                // Create scan response with additional data
-                byte[] scanRespData = new byte[Math.min(testData.length, 1650)];
-                for (int i = 0; i < scanRespData.length; i++) {
-                    scanRespData[i] = (byte)((i + 200) % 256);
+
+        // The uid itself, plus any lanes of a parallel broadcast (uid#0, uid#1, ...)
+        for (String key : new HashSet<>(mPacketRotationHandlers.keySet())) {
+            if (key.equals(uid + "_rotation") || key.startsWith(uid + "#")) {
+                Handler handler = mPacketRotationHandlers.remove(key);
+                Runnable runnable = mPacketRotationRunnables.remove(key);
+                if (handler != null && runnable != null) {
+                    handler.removeCallbacks(runnable);
                 }
-                
-                AdvertiseData.Builder scanRespBuilder = new AdvertiseData.Builder();
-                scanRespBuilder.setIncludeDeviceName(false);
-                scanRespBuilder.setIncludeTxPowerLevel(false);
-                scanRespBuilder.addManufacturerData(companyId, scanRespData);
-                scanResponse = scanRespBuilder.build();
             }
-            
-            // Start extended advertising
-            advertiser.startAdvertisingSet(params, data, scanResponse, null, null, callback);
-            
-            synchronized (lock) {
-                if (!callbackReceived[0]) {
-                    try {
-                        lock.wait(500);
-                    } catch (InterruptedException e) {
-                        // Ignore
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            for (String key : new HashSet<>(mAdvertisingSetCallbackList.keySet())) {
+                if (key.equals(uid) || key.startsWith(uid + "#")) {
+                    AdvertisingSetCallback setCallback = mAdvertisingSetCallbackList.remove(key);
+                    if (setCallback != null) {
+                        mBluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertisingSet(setCallback);
                     }
+                    mAdvertisingSetList.remove(key);
                 }
             }
-            
-            if (result[0]) {
-                advertiser.stopAdvertisingSet(callback);
-            }
-            
-            return result[0];
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error testing extended advertising", e);
-            return false;
         }
     }
 
+    private void startRestartRotation(String uid, FramedMessage message, boolean useExtendedAdvertising, 
+                                      RotationSchedule schedule) {
+        // Create a timer to rotate through packets
+        final Handler handler = new Handler();
+        
+        // Store the runnable so we can stop it later
+        final String rotationKey = uid + "_rotation";
+        
+        RestartRotation packetRotation = new RestartRotation(uid, handler, message, useExtendedAdvertising, schedule);
+        
+        // Store the handler so we can stop it on stopBroadcast
+        mPacketRotationHandlers.put(rotationKey, handler);
+        mPacketRotationRunnables.put(rotationKey, packetRotation);
+        
+        // Start the rotation
+        handler.post(packetRotation);
+    }
+
+    private void startInPlaceRotation(String uid, FramedMessage message, RotationSchedule schedule) {
+        final Handler handler = new Handler();
+        final String rotationKey = uid + "_rotation";
+        schedule.onAdvertisingIntervalInEffect(RotationSchedule.intervalForSetInterval(message.parameters.getInterval()));
+
+        InPlaceRotationCallback callback = new InPlaceRotationCallback(uid, handler, message, schedule);
+
+        // Store the handler so we can stop it on stopBroadcast
+        mPacketRotationHandlers.put(rotationKey, handler);
+        mPacketRotationRunnables.put(rotationKey, callback.rotation);
+        mAdvertisingSetCallbackList.put(uid, callback);
+
+        Log.d(TAG, "Starting in-place rotation of " + message.totalPackets + " packets for: " + uid);
+
+        // One advertising set for the whole message; callbacks land on the rotation looper
+        mBluetoothAdapter.getBluetoothLeAdvertiser().startAdvertisingSet(
+            message.parameters,
+            message.fragments[0],
+            null, // scan response
+            null, // periodic parameters
+            null, // periodic data
+            0,    // duration: until stopped
+            0,    // max extended advertising events: unlimited
+            callback,
+            handler
+        );
+    }
+    
+    private void startParallelRotation(String uid, FramedMessage message, RotationSchedule schedule, int maxSets, Promise promise) {
+        final Handler handler = new Handler();
+        schedule.onAdvertisingIntervalInEffect(RotationSchedule.intervalForSetInterval(message.parameters.getInterval()));
+
+        Log.d(TAG, "Starting up to " + maxSets + " parallel sets for " + message.totalPackets + " packets: " + uid);
+
+        new ParallelRotation(uid, handler, message, schedule, maxSets, promise).launchLane(0);
+    }
+    
     @ReactMethod
     public void checkBluetooth5Support(Promise promise) {
         if (mBluetoothAdapter == null) {
@@ -641,7 +715,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         }
     }
 
-    private void broadcastExtended(String uid, ReadableArray payload, ReadableMap options, Promise promise) {
+    private void broadcastExtended(String uid, byte[] payload, ReadableMap options, Promise promise) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
             if (promise != null) promise.reject("Extended advertising requires Android 8.0+");
             return;
@@ -656,7 +730,25 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         }
 
         ExtendedAdvertiseCallback callback = new ExtendedAdvertiseCallback(uid, promise);
+        AdvertisingSetParameters params = buildAdvertisingSetParameters(options);
+
+        // Build advertising data
+        AdvertiseData data = buildAdvertiseData(ParcelUuid.fromString(uid), payload, options);
 
+        // Start extended advertising
+        mBluetoothAdapter.getBluetoothLeAdvertiser().startAdvertisingSet(
+            params,
+            data,
+            null, // scan response
+            null, // periodic parameters
+            null, // periodic data
+            callback
+        );
+
+        mAdvertisingSetCallbackList.put(uid, callback);
+    }
+
+    private AdvertisingSetParameters buildAdvertisingSetParameters(ReadableMap options) {
         // Build parameters for extended advertising
         AdvertisingSetParameters.Builder paramsBuilder = new AdvertisingSetParameters.Builder();
         
@@ -684,25 +776,10 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
             paramsBuilder.setSecondaryPhy(BluetoothDevice.PHY_LE_CODED);
         }
 
-        AdvertisingSetParameters params = paramsBuilder.build();
-
-        // Build advertising data
-        AdvertiseData data = buildAdvertiseData(ParcelUuid.fromString(uid), toByteArray(payload), options);
-
-        // Start extended advertising
-        mBluetoothAdapter.getBluetoothLeAdvertiser().startAdvertisingSet(
-            params,
-            data,
-            null, // scan response
-            null, // periodic parameters
-            null, // periodic data
-            callback
-        );
-
-        mAdvertisingSetCallbackList.put(uid, callback);
+        return paramsBuilder.build();
     }
 
-    private void broadcastLegacy(String uid, ReadableArray payload, ReadableMap options, Promise promise) {
+    private void broadcastLegacy(String uid, byte[] payload, ReadableMap options, Promise promise) {
         BluetoothLeAdvertiser tempAdvertiser;
         AdvertiseCallback tempCallback;
 
@@ -711,6 +788,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
             tempCallback = mAdvertiserCallbackList.remove(uid);
 
             tempAdvertiser.stopAdvertising(tempCallback);
+            mCounters.increment(PerformanceCounters.ADVERTISER_STOPS);
         } else {
             tempAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
             tempCallback = new BLEAdvertiserModule.SimpleAdvertiseCallback(promise);
@@ -723,7 +801,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         }
         
         AdvertiseSettings settings = buildAdvertiseSettings(options);
-        AdvertiseData data = buildAdvertiseData(ParcelUuid.fromString(uid), toByteArray(payload), options);
+        AdvertiseData data = buildAdvertiseData(ParcelUuid.fromString(uid), payload, options);
 
         tempAdvertiser.startAdvertising(settings, data, tempCallback);
 
@@ -755,7 +833,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         }
     }
 
-    private byte[] toByteArray(ReadableArray payload) {
+    static byte[] toByteArray(ReadableArray payload) {
         byte[] temp = new byte[payload.size()];
         for (int i = 0; i < payload.size(); i++) {
             temp[i] = (byte)payload.getInt(i);
@@ -763,14 +841,36 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         return temp;
     }
 
+    /**
+     * Bytes given from JS as a number[] or a base64 string; also used by {@link ScanFilterSpec}.
+     */
+    static byte[] toByteArray(Dynamic payload) {
+        if (payload.getType() == ReadableType.String) {
+            // Decoded in bulk instead of one bridge call per byte
+            return Base64.decode(payload.asString(), Base64.DEFAULT);
+        }
+        return toByteArray(payload.asArray());
+    }
+
     private WritableArray toByteArray(byte[] payload) {
         WritableArray array = Arguments.createArray();
         for (byte data : payload) {
-            array.pushInt(data);
+            array.pushInt(data & 0xFF);
         }
         return array;
     }
 
+    /**
+     * Puts bytes in a scan event as base64 when the scan asked for it, or as a number[] otherwise.
+     */
+    private void putBytes(WritableMap params, String key, byte[] bytes) {
+        if (mBase64Payloads) {
+            params.putString(key, Base64.encodeToString(bytes, Base64.NO_WRAP));
+        } else {
+            params.putArray(key, toByteArray(bytes));
+        }
+    }
+
    @ReactMethod
     public void stopBroadcast(final Promise promise) {
         Log.w("BLEAdvertiserModule", "Stop Broadcast call");
@@ -790,19 +890,20 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         WritableArray promiseArray=Arguments.createArray();
 
         // Stop legacy advertising
-        Set<String> keys = mAdvertiserList.keySet();
+        Set<String> keys = new HashSet<>(mAdvertiserList.keySet());
         for (String key : keys) {
             BluetoothLeAdvertiser tempAdvertiser = mAdvertiserList.remove(key);
             AdvertiseCallback tempCallback = mAdvertiserCallbackList.remove(key);
             if (tempAdvertiser != null) {
                 tempAdvertiser.stopAdvertising(tempCallback);
+                mCounters.increment(PerformanceCounters.ADVERTISER_STOPS);
                 promiseArray.pushString(key);
             }
         }
 
         // Stop extended advertising
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            Set<String> extKeys = mAdvertisingSetCallbackList.keySet();
+            Set<String> extKeys = new HashSet<>(mAdvertisingSetCallbackList.keySet());
             for (String key : extKeys) {
                 AdvertisingSetCallback callback = mAdvertisingSetCallbackList.remove(key);
                 if (callback != null) {
@@ -837,15 +938,113 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
     }
 
     public void scan(String uid, ReadableArray manufacturerPayload, ReadableMap options, Promise promise) {
+        List<ScanFilterSpec> filters = new ArrayList<>();
+        try {
+            if (manufacturerPayload != null) {
+                filters.add(ScanFilterSpec.manufacturerPrefix(companyId, toByteArray(manufacturerPayload)));
+            }
+            if (uid != null) {
+                filters.add(ScanFilterSpec.serviceUuid(ParcelUuid.fromString(uid)));
+            }
+            addScanFilters(filters, options);
+        } catch (IllegalArgumentException e) {
+            promise.reject("Invalid scan filter: " + e.getMessage());
+            return;
+        }
+
+        // Replaces the previous scan() call's filters and processing options, leaving other sessions running
+        if (startScanSession(ScanSessions.DEFAULT_SESSION, filters, options, true, promise)) {
+            promise.resolve("Scanner started");
+        }
+    }
+
+    /**
+     * Adds a scan next to the running ones. Resolves with the session id for stopScanSession.
+     *
+     * @param filter one filter, an array of them (any may match), or null for every device.
+     */
+    @ReactMethod
+    public void startScanSession(Dynamic filter, ReadableMap options, Promise promise) {
+        List<ScanFilterSpec> filters = new ArrayList<>();
+        try {
+            if (filter != null && filter.getType() == ReadableType.Map) {
+                filters.addAll(ScanFilterSpec.fromMap(filter.asMap(), companyId));
+            } else if (filter != null && filter.getType() == ReadableType.Array) {
+                ReadableArray array = filter.asArray();
+                for (int i = 0; i < array.size(); i++) {
+                    filters.addAll(ScanFilterSpec.fromMap(array.getMap(i), companyId));
+                }
+            }
+            addScanFilters(filters, options);
+        } catch (IllegalArgumentException e) {
+            promise.reject("Invalid scan filter: " + e.getMessage());
+            return;
+        }
+
+        int sessionId = mNextScanSessionId++;
+        if (startScanSession(sessionId, filters, options, false, promise)) {
+            promise.resolve(sessionId);
+        }
+    }
+
+    /**
+     * Adds the OR-ed filters of the filters scan option.
+     */
+    private void addScanFilters(List<ScanFilterSpec> filters, ReadableMap options) {
+        if (options == null || !options.hasKey("filters")) {
+            return;
+        }
+        ReadableArray array = options.getArray("filters");
+        for (int i = 0; i < array.size(); i++) {
+            filters.addAll(ScanFilterSpec.fromMap(array.getMap(i), companyId));
+        }
+    }
+
+    /**
+     * @param filters OR-ed; empty takes every device.
+     * @param configure applies the processing options (fields, batching, pipeline...) even when the
+     *                  hardware scan is already running; otherwise only the first session sets them.
+     * @return false when the promise was rejected.
+     */
+    private boolean startScanSession(int sessionId, List<ScanFilterSpec> filters,
+                                     ReadableMap options, boolean configure, Promise promise) {
         if (mBluetoothAdapter == null) {
             promise.reject("Device does not support Bluetooth. Adapter is Null");
-            return;
+            return false;
         }
 
         if (mObservedState != null && !mObservedState) {
             Log.w("BLEAdvertiserModule", "Bluetooth disabled");
             promise.reject("Bluetooth disabled");
-            return;
+            return false;
+        }
+
+        int fields = ScanFields.DEFAULT;
+        if (options != null && options.hasKey("fields")) {
+            try {
+                fields = ScanFields.parse(options.getArray("fields"));
+            } catch (IllegalArgumentException e) {
+                promise.reject(e.getMessage());
+                return false;
+            }
+        }
+        if (options != null && options.hasKey("includeScanRecord") && options.getBoolean("includeScanRecord")) {
+            fields |= ScanFields.SCAN_RECORD;
+        }
+        if (options != null && options.hasKey("rssiFilter")) {
+            String filter = options.getString("rssiFilter");
+            if (!RssiEstimator.FILTER_EWMA.equals(filter) && !RssiEstimator.FILTER_KALMAN.equals(filter)) {
+                promise.reject("Unknown rssiFilter: " + filter);
+                return false;
+            }
+        }
+        if (wantsScanRecordRing(options)) {
+            try {
+                ScanRecordRing.checkCapacity(ringCapacity(options), ringPayloadCapacity(options));
+            } catch (IllegalArgumentException e) {
+                promise.reject(e.getMessage());
+                return false;
+            }
         }
 
         if (mScannerCallback == null) {
@@ -853,51 +1052,298 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
             mScannerCallback = new SimpleScanCallback();
         } 
         
-        if (mScanner == null) {
+        boolean running = mScanner != null;
+        if (!running) {
             mScanner = mBluetoothAdapter.getBluetoothLeScanner();
-        } else {
-            // was running. Needs to stop first. 
-            mScanner.stopScan(mScannerCallback);
         }
 
         if (mScanner == null) {
             Log.w("BLEAdvertiserModule", "Scanner Not Available unavailable");
             promise.reject("Scanner unavailable on this device");
-            return;
+            return false;
         } 
 
-        ScanSettings scanSettings = buildScanSettings(options);
+        if (configure || !running) {
+            long reemitInterval = DEFAULT_REEMIT_INTERVAL_MS;
+            if (options != null && options.hasKey("reemitInterval")) {
+                reemitInterval = options.getInt("reemitInterval");
+            }
+            boolean dedupBloomFilter = options != null && options.hasKey("dedupBloomFilter") && options.getBoolean("dedupBloomFilter");
+
+            configureScanEventBatcher(options);
 
-        // Initialize filters list properly
-        List<ScanFilter> filters = new ArrayList<>();
-        
-        // Only set filters to null if we don't want any filtering at all
-        boolean shouldUseFilters = (manufacturerPayload != null || uid != null);
-        
-        if (shouldUseFilters) {
-            if (manufacturerPayload != null) {
-                filters.add(new ScanFilter.Builder().setManufacturerData(companyId, toByteArray(manufacturerPayload)).build());
+            mBase64Payloads = options != null && options.hasKey("payloadEncoding") 
+                              && "base64".equals(options.getString("payloadEncoding"));
+            mScanFields = fields;
+            mReferenceRssi = options != null && options.hasKey("referenceRssi") ? options.getInt("referenceRssi")
+                                                                                : Integer.MIN_VALUE;
+            configureScanRecordRing(options);
+
+            // A new scan delivers every message once again
+            startScanPipeline(options, reemitInterval, dedupBloomFilter);
+        }
+
+        mScanSessions.put(new ScanSessions.Session(sessionId, filters, readScanSettings(options)));
+        updateHardwareScan(configure || !running);
+        return true;
+    }
+
+    @ReactMethod
+    public void stopScanSession(int sessionId, Promise promise) {
+        if (!mScanSessions.remove(sessionId)) {
+            promise.reject("Unknown scan session: " + sessionId);
+            return;
+        }
+
+        if (mScanSessions.isEmpty()) {
+            stopHardwareScan();
+        } else if (mScanner != null) {
+            updateHardwareScan(false);
+        }
+        promise.resolve(true);
+    }
+
+    /**
+     * Starts the hardware scan with the union of the sessions' filters and their most demanding
+     * settings. A running scan is only restarted when either changed, or when forced.
+     */
+    private void updateHardwareScan(boolean force) {
+        ScanSessions.Session[] sessions = mScanSessions.snapshot();
+        Set<ScanFilter> filters = ScanSessions.unionFilters(sessions);
+        ScanSessions.Settings settings = ScanSessions.Settings.merge(sessions);
+
+        boolean unchanged = mHardwareSettings != null && settings.equals(mHardwareSettings)
+                            && (filters == null ? mHardwareFilters == null : filters.equals(mHardwareFilters));
+        if (unchanged && !force) {
+            return;
+        }
+
+        if (mHardwareSettings != null) {
+            // Hand over what the controller still holds before its batching is reset
+            if (mHardwareSettings.reportDelay > 0) {
+                mScanner.flushPendingScanResults(mScannerCallback);
             }
-            if (uid != null) {
-                filters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(uid)).build());
+            mScanner.stopScan(mScannerCallback);
+        }
+
+        mHardwareFilters = filters;
+        mHardwareSettings = settings;
+        mScanner.startScan(filters != null ? new ArrayList<>(filters) : null, buildScanSettings(settings), mScannerCallback);
+    }
+
+    private void startScanPipeline(ReadableMap options, long reemitInterval, boolean dedupBloomFilter) {
+        int workers = ScanPipeline.defaultWorkerCount();
+        if (options != null && options.hasKey("scanWorkers")) {
+            workers = options.getInt("scanWorkers");
+        }
+
+        int queueCapacity = DEFAULT_SCAN_QUEUE_CAPACITY;
+        if (options != null && options.hasKey("scanQueueCapacity")) {
+            queueCapacity = options.getInt("scanQueueCapacity");
+        }
+
+        String policy = ScanPipeline.POLICY_DROP_OLDEST;
+        if (options != null && options.hasKey("scanQueuePolicy")) {
+            policy = options.getString("scanQueuePolicy");
+        }
+
+        // Any of these turns on per-device emission control
+        ScanPipeline.ThrottleSettings throttle = null;
+        boolean changesOnly = options != null && options.hasKey("changesOnly") && options.getBoolean("changesOnly");
+        long emitInterval = options != null && options.hasKey("emitInterval") ? options.getInt("emitInterval") : 0;
+        int rssiThreshold = options != null && options.hasKey("rssiThreshold") ? options.getInt("rssiThreshold") : 0;
+        if (changesOnly || emitInterval > 0 || rssiThreshold > 0) {
+            throttle = new ScanPipeline.ThrottleSettings(emitInterval, rssiThreshold, changesOnly);
+        }
+
+        ScanPipeline.EstimatorSettings estimator = null;
+        if (options != null && options.hasKey("rssiFilter")) {
+            estimator = new ScanPipeline.EstimatorSettings(
+                options.getString("rssiFilter"),
+                options.hasKey("rssiAlpha") ? options.getDouble("rssiAlpha") : 0.2,
+                options.hasKey("kalmanProcessNoise") ? options.getDouble("kalmanProcessNoise") : 0.05,
+                options.hasKey("kalmanMeasurementNoise") ? options.getDouble("kalmanMeasurementNoise") : 9,
+                options.hasKey("pathLossExponent") ? options.getDouble("pathLossExponent") : 2);
+        }
+
+        // Version 2 fragments start with a zero byte, as plain payloads may, so they are only read on request
+        int headerVersion = FragmentEncoder.VERSION_1;
+        if (options != null && options.hasKey("headerVersion")) {
+            headerVersion = options.getInt("headerVersion");
+        }
+
+        ScanPipeline previous = mScanPipeline;
+        if (previous != null) {
+            previous.shutdown(null);
+        }
+
+        mScanPipeline = new ScanPipeline(workers, queueCapacity, policy, REASSEMBLY_CAPACITY, COMPLETED_MESSAGE_CAPACITY,
+                                         reemitInterval, dedupBloomFilter, throttle, estimator, mCompression,
+                                         headerVersion, PACKET_TIMEOUT_MS, mCounters, new ScanResultProcessor());
+    }
+
+    private static boolean wantsScanRecordRing(ReadableMap options) {
+        return options != null && options.hasKey("delivery") && "ring".equals(options.getString("delivery"));
+    }
+
+    private static int ringCapacity(ReadableMap options) {
+        return options.hasKey("ringCapacity") ? options.getInt("ringCapacity") : DEFAULT_RING_CAPACITY;
+    }
+
+    private static int ringPayloadCapacity(ReadableMap options) {
+        return options.hasKey("ringPayloadCapacity") ? options.getInt("ringPayloadCapacity")
+                                                     : DEFAULT_RING_PAYLOAD_CAPACITY;
+    }
+
+    /**
+     * Options were checked by startScanSession(), so the ring is known to fit.
+     */
+    private void configureScanRecordRing(ReadableMap options) {
+        if (!wantsScanRecordRing(options)) {
+            mScanRecordRing = null;
+            return;
+        }
+        mScanRecordRing = new ScanRecordRing(ringCapacity(options), ringPayloadCapacity(options));
+    }
+
+    private void configureScanEventBatcher(ReadableMap options) {
+        ScanEventBatcher previous = mScanEventBatcher;
+        if (previous != null) {
+            previous.flush();
+        }
+
+        boolean batched = options != null && (options.hasKey("batchSize") || options.hasKey("batchLatency"));
+        if (!batched) {
+            mScanEventBatcher = null;
+            return;
+        }
+
+        int batchSize = options.hasKey("batchSize") ? options.getInt("batchSize") : Integer.MAX_VALUE;
+        long batchLatency = options.hasKey("batchLatency") ? options.getInt("batchLatency") : 1000;
+        String coalescing = options.hasKey("coalescing") ? options.getString("coalescing") : ScanEventBatcher.POLICY_LOSSLESS;
+
+        mScanEventBatcher = new ScanEventBatcher(mWorkerThread.getLooper(), new ScanEventBatcher.Sink() {
+            @Override
+            public void onBatch(WritableArray batch) {
+                mCounters.increment(PerformanceCounters.EVENTS_EMITTED);
+                sendEvent("onDevicesFound", batch);
             }
+        }, batchSize, batchLatency, coalescing);
+    }
+
+    private void emitDeviceFound(String deviceAddress, WritableMap params, boolean coalescable) {
+        ScanEventBatcher batcher = mScanEventBatcher;
+        if (batcher != null) {
+            batcher.add(deviceAddress, params, coalescable);
         } else {
-            // If no filters needed, pass null to scan for all devices
-            filters = null;
+            mCounters.increment(PerformanceCounters.EVENTS_EMITTED);
+            sendEvent("onDeviceFound", params);
+        }
+    }
+
+    @ReactMethod
+    public void addListener(String eventName) {
+
+    }
+
+    @ReactMethod
+    public void removeListeners(Integer count) {
+
+    }
+
+    @ReactMethod
+    public void getStats(Promise promise) {
+        promise.resolve(statsToWritableMap());
+    }
+
+    @ReactMethod
+    public void resetStats(Promise promise) {
+        mCounters.reset();
+        promise.resolve(true);
+    }
+
+    /**
+     * Sends an onStats event every intervalMs; 0 stops them.
+     */
+    @ReactMethod
+    public void setStatsInterval(int intervalMs) {
+        synchronized (this) {
+            if (mStatsHandler == null) {
+                mStatsHandler = new Handler(mWorkerThread.getLooper());
+            }
+            mStatsHandler.removeCallbacks(mStatsRunnable);
+            mStatsIntervalMs = Math.max(0, intervalMs);
+            if (mStatsIntervalMs > 0) {
+                mStatsHandler.postDelayed(mStatsRunnable, mStatsIntervalMs);
+            }
+        }
+    }
+
+    private final Runnable mStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (getReactApplicationContext().hasActiveCatalystInstance()) {
+                sendEvent("onStats", statsToWritableMap());
+            }
+            synchronized (BLEAdvertiserModule.this) {
+                if (mStatsIntervalMs > 0) {
+                    mStatsHandler.postDelayed(this, mStatsIntervalMs);
+                }
+            }
+        }
+    };
+
+    private WritableMap statsToWritableMap() {
+        WritableMap stats = Arguments.createMap();
+        for (int counter = 0; counter < PerformanceCounters.COUNT; counter++) {
+            // Doubles: JS numbers, and an int would wrap on long-running receivers
+            stats.putDouble(PerformanceCounters.NAMES[counter], mCounters.get(counter));
         }
-        
-        mScanner.startScan(filters, scanSettings, mScannerCallback);
-        promise.resolve("Scanner started");
+        stats.putDouble("probeDurationMs", mCounters.getLastProbeDurationMs());
+        ScanPipeline pipeline = mScanPipeline;
+        stats.putInt("messagesInFlight", pipeline != null ? pipeline.messagesInFlight() : 0);
+        stats.putInt("scanQueueDepth", pipeline != null ? pipeline.queued() : 0);
+        ScanRecordRing ring = mScanRecordRing;
+        stats.putInt("scanRecordsPending", ring != null ? ring.pending() : 0);
+        stats.putDouble("scanRecordsOverwritten", ring != null ? ring.overwritten() : 0);
+        return stats;
     }
 
-    @ReactMethod
-    public void addListener(String eventName) {
-
+    /**
+     * Takes every record waiting in the scan record ring, packed back to back as one base64
+     * string (see ScanRecordRing for the layout). Empty when nothing is waiting.
+     *
+     * Runs on the JS thread: the records are copied and encoded here, and decoded again in JS.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public String drainScanRecords() {
+        ScanRecordRing ring = mScanRecordRing;
+        if (ring == null) {
+            return "";
+        }
+        return Base64.encodeToString(ring.drain(), Base64.NO_WRAP);
     }
 
     @ReactMethod
-    public void removeListeners(Integer count) {
+    public void flushScanResults(Promise promise) {
+        if (mBluetoothAdapter == null) {
+            promise.reject("Device does not support Bluetooth. Adapter is Null");
+            return;
+        }
+
+        if (mObservedState != null && !mObservedState) {
+            Log.w("BLEAdvertiserModule", "Bluetooth disabled");
+            promise.reject("Bluetooth disabled");
+            return;
+        }
 
+        if (mScanner != null) {
+            // Results held by the controller arrive through onBatchScanResults
+            mScanner.flushPendingScanResults(mScannerCallback);
+            promise.resolve("Scan results flushed");
+        } else {
+            promise.resolve("Scanner not started");
+        }
     }
 
     @ReactMethod
@@ -913,41 +1359,87 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
             return;
         }
 
+        mScanSessions.clear();
         if (mScanner != null) {
-            mScanner.stopScan(mScannerCallback);
-            mScanner = null;
+            stopHardwareScan();
             promise.resolve("Scanner stopped");
         } else {
             promise.resolve("Scanner not started");
         }
     }
 
-    private ScanSettings buildScanSettings(ReadableMap options) {
-        ScanSettings.Builder scanSettingsBuilder = new ScanSettings.Builder();
+    private void stopHardwareScan() {
+        if (mScanner == null) {
+            return;
+        }
+        mScanner.stopScan(mScannerCallback);
+        mScanner = null;
+        mHardwareFilters = null;
+        mHardwareSettings = null;
+
+        // Finish what the workers still hold, then deliver whatever the last batch still holds
+        final ScanEventBatcher batcher = mScanEventBatcher;
+        Runnable flushBatcher = new Runnable() {
+            @Override
+            public void run() {
+                if (mScanEventBatcher == batcher) {
+                    mScanEventBatcher = null;
+                }
+                if (batcher != null) {
+                    batcher.flush();
+                }
+            }
+        };
+
+        ScanPipeline pipeline = mScanPipeline;
+        mScanPipeline = null;
+        if (pipeline != null) {
+            pipeline.shutdown(flushBatcher);
+        } else {
+            flushBatcher.run();
+        }
+    }
+
+    private ScanSessions.Settings readScanSettings(ReadableMap options) {
+        ScanSessions.Settings settings = new ScanSessions.Settings();
 
         if (options != null && options.hasKey("scanMode")) {
-            scanSettingsBuilder.setScanMode(options.getInt("scanMode"));
+            settings.scanMode = options.getInt("scanMode");
         } 
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            if (options != null && options.hasKey("numberOfMatches")) {
-                scanSettingsBuilder.setNumOfMatches(options.getInt("numberOfMatches"));
-            }
-            if (options != null && options.hasKey("matchMode")) {
-                scanSettingsBuilder.setMatchMode(options.getInt("matchMode"));
-            }
+        if (options != null && options.hasKey("numberOfMatches")) {
+            settings.numberOfMatches = options.getInt("numberOfMatches");
+        }
+        if (options != null && options.hasKey("matchMode")) {
+            settings.matchMode = options.getInt("matchMode");
         }
 
         if (options != null && options.hasKey("reportDelay")) {
-            scanSettingsBuilder.setReportDelay(options.getInt("reportDelay"));
+            settings.reportDelay = options.getInt("reportDelay");
         }
 
+        settings.longRange = options != null && options.hasKey("useLongRange") && options.getBoolean("useLongRange");
+        settings.extendedScan = options != null && options.hasKey("useExtendedScan") && options.getBoolean("useExtendedScan");
+        return settings;
+    }
+
+    private ScanSettings buildScanSettings(ScanSessions.Settings settings) {
+        ScanSettings.Builder scanSettingsBuilder = new ScanSettings.Builder();
+        scanSettingsBuilder.setScanMode(settings.scanMode);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            scanSettingsBuilder.setNumOfMatches(settings.numberOfMatches);
+            scanSettingsBuilder.setMatchMode(settings.matchMode);
+        }
+
+        scanSettingsBuilder.setReportDelay(settings.reportDelay);
+
         // Enable extended scanning if available
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            if (options != null && options.hasKey("useLongRange") && options.getBoolean("useLongRange")) {
+            if (settings.longRange) {
                 scanSettingsBuilder.setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
             }
-            if (options != null && options.hasKey("useExtendedScan") && options.getBoolean("useExtendedScan")) {
+            if (settings.extendedScan) {
                 scanSettingsBuilder.setLegacy(false);
             }
         }
@@ -958,130 +1450,31 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
     private class SimpleScanCallback extends ScanCallback {
 		@Override
 		public void onScanResult(int callbackType, ScanResult result) {
-            Log.w("BLEAdvertiserModule", "Scanned: " + result.toString());
-
-            WritableMap params = Arguments.createMap();
-            WritableArray paramsUUID = Arguments.createArray();
-
-            if (result.getScanRecord().getServiceUuids()!=null) {
-                for (ParcelUuid uuid : result.getScanRecord().getServiceUuids()) {
-                    paramsUUID.pushString(uuid.toString());
-                }
-            }
-
-            params.putArray("serviceUuids", paramsUUID);
-            params.putInt("rssi", result.getRssi());
-            
-            if (result.getScanRecord() != null) {
-                params.putInt("txPower", result.getScanRecord().getTxPowerLevel());
-                params.putString("deviceName", result.getScanRecord().getDeviceName());
-                params.putInt("advFlags", result.getScanRecord().getAdvertiseFlags());
-                
-                // Get manufacturer data
-                byte[] manufData = result.getScanRecord().getManufacturerSpecificData(companyId);
-                if (manufData != null) {
-                    params.putInt("companyId", companyId);
-                    
-                    // Check if this is a multi-packet message
-                    if (manufData.length >= 3) {
-                        byte totalPackets = manufData[0];
-                        byte packetIndex = manufData[1];
-                        byte packetId = manufData[2];
-                        
-                        // If totalPackets > 1, this is part of a multi-packet message
-                        if (totalPackets > 1 && totalPackets <= 255 && packetIndex < totalPackets) {
-                            Log.i(TAG, "Received packet " + (packetIndex + 1) + "/" + totalPackets + 
-                                             " with ID: " + (packetId & 0xFF));
-                            
-                            // Handle packet reassembly
-                            String deviceKey = result.getDevice().getAddress() + "_" + (packetId & 0xFF);
-                            PacketBuffer buffer = mPacketBuffers.get(deviceKey);
-                            
-                            if (buffer == null) {
-                                buffer = new PacketBuffer();
-                                buffer.totalPackets = totalPackets;
-                                buffer.packetId = packetId;
-                                mPacketBuffers.put(deviceKey, buffer);
-                                Log.i(TAG, "Created new packet buffer for device: " + deviceKey);
-                            }
-                            
-                            // Extract the actual data (skip the 3-byte header)
-                            byte[] packetData = new byte[manufData.length - 3];
-                            System.arraycopy(manufData, 3, packetData, 0, packetData.length);
-                            
-                            // Store this packet
-                            buffer.packets.put((int)packetIndex, packetData);
-                            Log.i(TAG, "Stored packet " + (packetIndex + 1) + " for device: " + deviceKey);
-                            
-                            // Check if we have all packets
-                            if (buffer.packets.size() == buffer.totalPackets) {
-                                Log.i(TAG, "All packets received, reassembling message");
-                                
-                                // Calculate total size
-                                int totalSize = 0;
-                                for (byte[] packet : buffer.packets.values()) {
-                                    totalSize += packet.length;
-                                }
-                                
-                                // Reassemble the complete message
-                                byte[] completeData = new byte[totalSize];
-                                int offset = 0;
-                                
-                                for (int i = 0; i < buffer.totalPackets; i++) {
-                                    byte[] packet = buffer.packets.get(i);
-                                    if (packet != null) {
-                                        System.arraycopy(packet, 0, completeData, offset, packet.length);
-                                        offset += packet.length;
-                                    }
-                                }
-                                
-                                Log.w(TAG, "Reassembled complete message, size: " + completeData.length + " bytes");
-                                
-                                // Remove from buffer
-                                mPacketBuffers.remove(deviceKey);
-                                
-                                // Send the complete reassembled data
-                                params.putArray("manufData", toByteArray(completeData));
-                                params.putBoolean("isReassembled", true);
-                                params.putInt("originalPackets", totalPackets);
-                            } else {
-                                // Still waiting for more packets
-                                Log.i(TAG, "Waiting for more packets: " + buffer.packets.size() + "/" + buffer.totalPackets);
-                                // Don't send incomplete data to JavaScript
-                                return;
-                            }
-                        } else {
-                            // Single packet message
-                            params.putArray("manufData", toByteArray(manufData));
-                            params.putBoolean("isReassembled", false);
-                        }
-                    } else {
-                        // Not enough data for packet header, treat as single packet
-                        params.putArray("manufData", toByteArray(manufData));
-                        params.putBoolean("isReassembled", false);
-                    }
-                }
-                
-                // Check if this is an extended advertisement
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    params.putBoolean("isLegacy", result.isLegacy());
-                    params.putBoolean("isConnectable", result.isConnectable());
-                    params.putInt("dataStatus", result.getDataStatus());
-                    params.putInt("primaryPhy", result.getPrimaryPhy());
-                    params.putInt("secondaryPhy", result.getSecondaryPhy());
-                }
-            }
-            
-            if (result.getDevice() != null) {
-                params.putString("deviceAddress", result.getDevice().getAddress());
+            // Parsing and reassembly happen on the scan workers; the Bluetooth thread only enqueues
+            ScanPipeline pipeline = mScanPipeline;
+            if (pipeline != null) {
+                pipeline.submit(result);
             }
-
-            sendEvent("onDeviceFound", params);
 		}
 
 		@Override
 		public void onBatchScanResults(final List<ScanResult> results) {
+            ScanPipeline pipeline = mScanPipeline;
+            if (pipeline == null) {
+                return;
+            }
 
+            // The controller does not promise any order; fragments must be offered in the order they were heard
+            List<ScanResult> sorted = new ArrayList<>(results);
+            Collections.sort(sorted, new Comparator<ScanResult>() {
+                @Override
+                public int compare(ScanResult a, ScanResult b) {
+                    long ta = a.getTimestampNanos();
+                    long tb = b.getTimestampNanos();
+                    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+                }
+            });
+            pipeline.submitBatch(sorted);
 		}
 
 		@Override
@@ -1103,6 +1496,295 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
 		}
 	};
 
+    /**
+     * Turns scan results into JS events on the scan workers. Each worker passes its own
+     * reassembly table and delivered-message cache.
+     */
+    private class ScanResultProcessor implements ScanPipeline.Processor {
+        @Override
+        public void process(ScanPipeline.Worker worker, ScanResult result, ScanPipeline.Batch batch) {
+            // The hardware filters are a union, so each result is checked against the sessions themselves
+            ScanSessions.Session[] sessions = mScanSessions.snapshot();
+            if (!matchesAnySession(sessions, result)) {
+                return;
+            }
+
+            ScanRecordRing ring = mScanRecordRing;
+            if (ring != null) {
+                writeScanRecord(ring, result, worker);
+                return;
+            }
+
+            mCounters.increment(PerformanceCounters.SCAN_RESULTS);
+            ScanRecord record = result.getScanRecord();
+            String deviceAddress = result.getDevice() != null ? result.getDevice().getAddress() : null;
+
+            // Multi-packet fragments are held until their message is complete
+            byte[] manufData = record != null ? record.getManufacturerSpecificData(companyId) : null;
+            int status = FragmentDecoder.SINGLE;
+            if (manufData != null) {
+                status = offerFragment(worker.decoder, deviceAddress, manufData);
+                if (status == FragmentDecoder.COMPLETE) {
+                    manufData = worker.decoder.takeMessage();
+                } else if (status != FragmentDecoder.SINGLE) {
+                    // Still waiting for more packets, or already delivered: nothing for JavaScript
+                    return;
+                }
+            }
+
+            WritableMap params = parseScanResult(result, worker, sessions, manufData, status);
+            if (params == null) {
+                return;
+            }
+
+            // Reassembled messages are never coalesced away by a later plain advertisement
+            if (batch != null && mScanEventBatcher == null) {
+                batch.add(params);
+            } else {
+                emitDeviceFound(deviceAddress, params, status != FragmentDecoder.COMPLETE);
+            }
+        }
+
+        /**
+         * Ring delivery: the same reassembly as parseScanResult, without building a map.
+         */
+        private void writeScanRecord(ScanRecordRing ring, ScanResult result, ScanPipeline.Worker worker) {
+            mCounters.increment(PerformanceCounters.SCAN_RESULTS);
+            FragmentDecoder decoder = worker.decoder;
+
+            String deviceAddress = result.getDevice() != null ? result.getDevice().getAddress() : null;
+            ScanRecord record = result.getScanRecord();
+            byte[] payload = record != null ? record.getManufacturerSpecificData(companyId) : null;
+            int flags = 0;
+            int packets = 0;
+
+            if (payload != null) {
+                int status = offerFragment(decoder, deviceAddress, payload);
+                if (status == FragmentDecoder.COMPLETE) {
+                    payload = decoder.takeMessage();
+                    packets = decoder.getMessageFragmentCount();
+                    flags |= ScanRecordRing.FLAG_REASSEMBLED;
+                } else if (status != FragmentDecoder.SINGLE) {
+                    return;
+                }
+            }
+
+            long address = deviceAddress != null ? FragmentDecoder.parseAddress(deviceAddress) : 0;
+            if (packets == 0 && isThrottled(worker, address, payload, result.getRssi())) {
+                return;
+            }
+            if (payload == null) {
+                payload = new byte[0];
+            }
+
+            int primaryPhy = 0;
+            int secondaryPhy = 0;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                if (result.isLegacy()) flags |= ScanRecordRing.FLAG_LEGACY;
+                if (result.isConnectable()) flags |= ScanRecordRing.FLAG_CONNECTABLE;
+                primaryPhy = result.getPrimaryPhy();
+                secondaryPhy = result.getSecondaryPhy();
+            } else {
+                flags |= ScanRecordRing.FLAG_LEGACY;
+            }
+
+            boolean wasEmpty = ring.write(address, result.getRssi(), flags, primaryPhy, secondaryPhy, packets,
+                                          System.currentTimeMillis(), payload, 0, payload.length);
+            if (wasEmpty) {
+                mCounters.increment(PerformanceCounters.EVENTS_EMITTED);
+                sendEvent("onScanRecordsAvailable", Arguments.createMap());
+            }
+        }
+
+        /**
+         * Reassembled messages are never throttled; the delivered-message cache already limits them.
+         */
+        private boolean isThrottled(ScanPipeline.Worker worker, long address, byte[] payload, int rssi) {
+            if (worker.throttle == null || worker.throttle.shouldEmit(address, payload, rssi, System.currentTimeMillis())) {
+                return false;
+            }
+            mCounters.increment(PerformanceCounters.EVENTS_THROTTLED);
+            return true;
+        }
+
+        /**
+         * The calibrated reference when one was given, else derived from the advertised TX power.
+         */
+        private int referenceRssi(ScanRecord record) {
+            int reference = mReferenceRssi;
+            if (reference != Integer.MIN_VALUE) {
+                return reference;
+            }
+            if (record != null && record.getTxPowerLevel() != Integer.MIN_VALUE) {
+                return record.getTxPowerLevel() - RssiEstimator.TX_POWER_TO_1M;
+            }
+            return RssiEstimator.DEFAULT_REFERENCE_RSSI;
+        }
+
+        /**
+         * Runs manufacturer data through multi-packet reassembly and counts the outcome.
+         */
+        private int offerFragment(FragmentDecoder decoder, String deviceAddress, byte[] manufData) {
+            int status = decoder.offer(deviceAddress, manufData, System.currentTimeMillis());
+            if (status != FragmentDecoder.SINGLE) {
+                mCounters.increment(PerformanceCounters.FRAGMENTS_PARSED);
+            }
+            if (status == FragmentDecoder.COMPLETE) {
+                mCounters.increment(PerformanceCounters.MESSAGES_REASSEMBLED);
+                int recovered = decoder.getRecoveredFragmentCount();
+                if (recovered > 0) {
+                    mCounters.increment(PerformanceCounters.MESSAGES_RECOVERED);
+                    mCounters.add(PerformanceCounters.FRAGMENTS_RECOVERED, recovered);
+                }
+                if (decoder.wasDecompressed()) {
+                    mCounters.increment(PerformanceCounters.MESSAGES_DECOMPRESSED);
+                }
+            } else if (status == FragmentDecoder.CORRUPTED) {
+                mCounters.increment(PerformanceCounters.MESSAGES_CORRUPTED);
+            } else if (status == FragmentDecoder.NOT_INFLATED) {
+                mCounters.increment(PerformanceCounters.MESSAGES_NOT_INFLATED);
+            } else if (status == FragmentDecoder.DUPLICATE || status == FragmentDecoder.ALREADY_DELIVERED) {
+                mCounters.increment(PerformanceCounters.DUPLICATE_FRAGMENTS);
+            }
+            return status;
+        }
+
+        @Override
+        public void onBatchProcessed(ScanPipeline.Batch batch) {
+            if (batch.size() > 0) {
+                mCounters.increment(PerformanceCounters.EVENTS_EMITTED);
+                sendEvent("onDevicesFound", batch.events());
+            }
+        }
+
+        private boolean matchesAnySession(ScanSessions.Session[] sessions, ScanResult result) {
+            for (ScanSessions.Session session : sessions) {
+                if (session.matches(result)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Builds the event for one advertisement that reassembly let through.
+         *
+         * @param manufData the advertisement's manufacturer data, or the message it completed.
+         * @param status    {@link FragmentDecoder#SINGLE} or {@link FragmentDecoder#COMPLETE}.
+         * @return the event for JS, or null when its device is throttled.
+         */
+        private WritableMap parseScanResult(ScanResult result, ScanPipeline.Worker worker,
+                                            ScanSessions.Session[] sessions, byte[] manufData, int status) {
+            final int fields = mScanFields;
+            ScanRecord record = result.getScanRecord();
+            String deviceAddress = result.getDevice() != null ? result.getDevice().getAddress() : null;
+
+            long address = deviceAddress != null ? FragmentDecoder.parseAddress(deviceAddress) : 0;
+            long now = System.currentTimeMillis();
+
+            // Every reading feeds the estimate, throttled or not; the throttle then compares smoothed values
+            int rssi = result.getRssi();
+            int estimate = -1;
+            if (worker.estimator != null) {
+                estimate = worker.estimator.observe(address, rssi, now);
+                rssi = Math.round(worker.estimator.smoothedRssi(estimate));
+            }
+
+            // Decided before anything is allocated for the event
+            if (status == FragmentDecoder.SINGLE && isThrottled(worker, address, manufData, rssi)) {
+                return null;
+            }
+
+            WritableMap params = Arguments.createMap();
+
+            if ((fields & ScanFields.RSSI) != 0) {
+                params.putInt("rssi", result.getRssi());
+            }
+
+            if (estimate >= 0 && (fields & ScanFields.ESTIMATES) != 0) {
+                RssiEstimator estimator = worker.estimator;
+                if ((fields & ScanFields.SMOOTHED_RSSI) != 0) {
+                    params.putDouble("smoothedRssi", estimator.smoothedRssi(estimate));
+                }
+                if ((fields & ScanFields.DISTANCE) != 0) {
+                    params.putDouble("distance", estimator.distance(estimate, referenceRssi(record)));
+                }
+                if ((fields & ScanFields.DISTANCE_CONFIDENCE) != 0) {
+                    params.putDouble("distanceConfidence", estimator.confidence(estimate));
+                }
+            }
+
+            if (manufData != null && (fields & ScanFields.MANUF_DATA) != 0) {
+                params.putInt("companyId", companyId);
+                putBytes(params, "manufData", manufData);
+                if (status == FragmentDecoder.COMPLETE) {
+                    params.putBoolean("isReassembled", true);
+                    params.putInt("originalPackets", worker.decoder.getMessageFragmentCount());
+                } else {
+                    params.putBoolean("isReassembled", false);
+                }
+            }
+
+            if (record != null) {
+                if ((fields & ScanFields.SERVICE_UUIDS) != 0) {
+                    WritableArray paramsUUID = Arguments.createArray();
+                    if (record.getServiceUuids() != null) {
+                        for (ParcelUuid uuid : record.getServiceUuids()) {
+                            paramsUUID.pushString(uuid.toString());
+                        }
+                    }
+                    params.putArray("serviceUuids", paramsUUID);
+                }
+                if ((fields & ScanFields.TX_POWER) != 0) {
+                    params.putInt("txPower", record.getTxPowerLevel());
+                }
+                if ((fields & ScanFields.DEVICE_NAME) != 0) {
+                    params.putString("deviceName", record.getDeviceName());
+                }
+                if ((fields & ScanFields.ADV_FLAGS) != 0) {
+                    params.putInt("advFlags", record.getAdvertiseFlags());
+                }
+                if ((fields & ScanFields.SCAN_RECORD) != 0) {
+                    putBytes(params, "scanRecord", record.getBytes());
+                }
+                
+                // Check if this is an extended advertisement
+                if ((fields & ScanFields.EXTENDED) != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    if ((fields & ScanFields.IS_LEGACY) != 0) {
+                        params.putBoolean("isLegacy", result.isLegacy());
+                    }
+                    if ((fields & ScanFields.IS_CONNECTABLE) != 0) {
+                        params.putBoolean("isConnectable", result.isConnectable());
+                    }
+                    if ((fields & ScanFields.DATA_STATUS) != 0) {
+                        params.putInt("dataStatus", result.getDataStatus());
+                    }
+                    if ((fields & ScanFields.PRIMARY_PHY) != 0) {
+                        params.putInt("primaryPhy", result.getPrimaryPhy());
+                    }
+                    if ((fields & ScanFields.SECONDARY_PHY) != 0) {
+                        params.putInt("secondaryPhy", result.getSecondaryPhy());
+                    }
+                }
+            }
+            
+            if ((fields & ScanFields.DEVICE_ADDRESS) != 0 && deviceAddress != null) {
+                params.putString("deviceAddress", deviceAddress);
+            }
+
+            if ((fields & ScanFields.SESSION_IDS) != 0
+                    || ((fields & ScanFields.SESSION_IDS_IF_SHARED) != 0 && sessions.length > 1)) {
+                WritableArray sessionIds = Arguments.createArray();
+                for (ScanSessions.Session session : sessions) {
+                    if (session.matches(result)) {
+                        sessionIds.pushInt(session.id);
+                    }
+                }
+                params.putArray("sessionIds", sessionIds);
+            }
+
+            return params;
+        }
+    }
+
     @ReactMethod
     public void enableAdapter() {
         if (mBluetoothAdapter == null) {
@@ -1195,6 +1877,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
 
     private class SimpleAdvertiseCallback extends AdvertiseCallback {
         Promise promise;
+        RotationSchedule schedule;
 
         public SimpleAdvertiseCallback () {
         }
@@ -1227,7 +1910,11 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         @Override
         public void onStartSuccess(AdvertiseSettings settingsInEffect) {
             super.onStartSuccess(settingsInEffect);
-            Log.i(TAG, "Advertising successful");
+            mCounters.increment(PerformanceCounters.ADVERTISER_STARTS);
+
+            if (schedule != null) {
+                schedule.onAdvertisingIntervalInEffect(RotationSchedule.intervalForAdvertiseMode(settingsInEffect.getMode()));
+            }
 
             if (promise == null) return;
             promise.resolve(settingsInEffect.toString());
@@ -1248,7 +1935,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
             super.onAdvertisingSetStarted(advertisingSet, txPower, status);
             
             if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
-                Log.i(TAG, "Extended advertising successful");
+                mCounters.increment(PerformanceCounters.ADVERTISER_STARTS);
                 mAdvertisingSetList.put(uid, advertisingSet);
                 
                 if (promise != null) {
@@ -1283,7 +1970,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         @Override
         public void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
             super.onAdvertisingSetStopped(advertisingSet);
-            Log.i(TAG, "Extended advertising stopped");
+            mCounters.increment(PerformanceCounters.ADVERTISER_STOPS);
             mAdvertisingSetList.remove(uid);
         }
 
@@ -1306,6 +1993,252 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
         }
     }
 
+    /**
+     * Rotates pre-framed packets by stopping and restarting the advertiser for each one.
+     * Used for legacy advertising, and for extended advertising when in-place rotation is off.
+     * The advertiser, callbacks and advertisements are all reused, so a tick allocates nothing.
+     */
+    private class RestartRotation implements Runnable {
+        final String uid;
+        final Handler handler;
+        final FramedMessage message;
+        final boolean useExtendedAdvertising;
+        final RotationSchedule schedule;
+        final BluetoothLeAdvertiser advertiser;
+        final SimpleAdvertiseCallback legacyCallback;
+        final ExtendedAdvertiseCallback extendedCallback;
+
+        int packetIndex;
+        boolean started;
+
+        RestartRotation(String uid, Handler handler, FramedMessage message, boolean useExtendedAdvertising, 
+                        RotationSchedule schedule) {
+            this.uid = uid;
+            this.handler = handler;
+            this.message = message;
+            this.useExtendedAdvertising = useExtendedAdvertising;
+            this.schedule = schedule;
+            this.advertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+
+            if (useExtendedAdvertising) {
+                this.legacyCallback = null;
+                this.extendedCallback = new ExtendedAdvertiseCallback(uid, null);
+            } else {
+                this.legacyCallback = new SimpleAdvertiseCallback();
+                this.legacyCallback.schedule = schedule;
+                this.extendedCallback = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (advertiser == null) {
+                Log.w(TAG, "Advertiser unavailable, stopping packet rotation for: " + uid);
+                return;
+            }
+
+            if (useExtendedAdvertising) {
+                // stopBroadcast() removed us: do not bring the set back
+                if (started && mAdvertisingSetCallbackList.get(uid) != extendedCallback) return;
+
+                if (started) advertiser.stopAdvertisingSet(extendedCallback);
+                advertiser.startAdvertisingSet(message.parameters, message.fragments[packetIndex], 
+                                               null, null, null, extendedCallback);
+                mAdvertisingSetCallbackList.put(uid, extendedCallback);
+            } else {
+                if (started && mAdvertiserCallbackList.get(uid) != legacyCallback) return;
+
+                if (started) {
+                    advertiser.stopAdvertising(legacyCallback);
+                    mCounters.increment(PerformanceCounters.ADVERTISER_STOPS);
+                }
+                advertiser.startAdvertising(message.settings, message.fragments[packetIndex], legacyCallback);
+                mAdvertiserList.put(uid, advertiser);
+                mAdvertiserCallbackList.put(uid, legacyCallback);
+            }
+            started = true;
+            mCounters.increment(PerformanceCounters.ROTATION_TICKS);
+
+            // Move to next packet, looping back to the first
+            packetIndex++;
+            if (packetIndex >= message.totalPackets) {
+                packetIndex = 0;
+            }
+
+            // Schedule next packet
+            handler.postDelayed(this, schedule.nextDelayMs());
+        }
+    }
+
+    /**
+     * Rotates the fragments of one message through a single advertising set with
+     * setAdvertisingData(), so the controller never tears the set down between fragments.
+     * The next fragment is only scheduled once onAdvertisingDataSet confirms the previous one.
+     */
+    private class InPlaceRotationCallback extends ExtendedAdvertiseCallback {
+        final Handler handler;
+        final FramedMessage message;
+        final RotationSchedule schedule;
+
+        AdvertisingSet advertisingSet;
+        int packetIndex;
+        boolean awaitingDataSet;
+        boolean stopped;
+
+        final Runnable rotation = new Runnable() {
+            @Override
+            public void run() {
+                if (stopped || advertisingSet == null || awaitingDataSet) return;
+
+                awaitingDataSet = true;
+                advertisingSet.setAdvertisingData(message.fragments[packetIndex]);
+                mCounters.increment(PerformanceCounters.ROTATION_TICKS);
+            }
+        };
+
+        InPlaceRotationCallback(String uid, Handler handler, FramedMessage message, RotationSchedule schedule) {
+            super(uid, null);
+            this.handler = handler;
+            this.message = message;
+            this.schedule = schedule;
+        }
+
+        private void advance() {
+            // A single fragment just stays on air
+            if (message.totalPackets <= 1) return;
+
+            packetIndex = (packetIndex + 1) % message.totalPackets;
+            handler.postDelayed(rotation, schedule.nextDelayMs());
+        }
+
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            super.onAdvertisingSetStarted(advertisingSet, txPower, status);
+            if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS || stopped) return;
+
+            // Packet 0 went out with the set itself
+            this.advertisingSet = advertisingSet;
+            advance();
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            // Not calling super: its per-packet log line is the only allocation left on this path
+            awaitingDataSet = false;
+            if (stopped) return;
+
+            if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                advance();
+            } else {
+                // Keep the current fragment on air and retry the swap on the next tick
+                handler.postDelayed(rotation, schedule.nextDelayMs());
+            }
+        }
+
+        @Override
+        public void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
+            super.onAdvertisingSetStopped(advertisingSet);
+            stopped = true;
+            handler.removeCallbacks(rotation);
+        }
+    }
+
+    /**
+     * Puts a message on as many concurrent advertising sets as the controller grants.
+     *
+     * Android gives every set its own random address, and scanners reassemble per address, so
+     * fragments split across sets would never meet. Each set therefore rotates in place through
+     * the whole message, set k starting k * n / maxSets fragments in, and is a complete sender on
+     * its own: the extra sets add redundancy against lost packets rather than bandwidth. Sets are
+     * started one at a time until maxSets is reached or the controller answers
+     * ADVERTISE_FAILED_TOO_MANY_ADVERTISERS.
+     */
+    private class ParallelRotation {
+        final String uid;
+        final Handler handler;
+        final FramedMessage message;
+        final RotationSchedule schedule;
+        final int maxSets;
+        final Promise promise;
+        final List<InPlaceRotationCallback> lanes = new ArrayList<>();
+
+        ParallelRotation(String uid, Handler handler, FramedMessage message, RotationSchedule schedule, 
+                         int maxSets, Promise promise) {
+            this.uid = uid;
+            this.handler = handler;
+            this.message = message;
+            this.schedule = schedule;
+            this.maxSets = maxSets;
+            this.promise = promise;
+        }
+
+        void launchLane(final int lane) {
+            final String laneKey = uid + "#" + lane;
+            final FramedMessage laneMessage = message.startingAt(lane * message.totalPackets / maxSets);
+            InPlaceRotationCallback callback = new InPlaceRotationCallback(laneKey, handler, laneMessage, schedule) {
+                @Override
+                public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+                    super.onAdvertisingSetStarted(advertisingSet, txPower, status);
+                    onLaneStarted(lane, this, status);
+                }
+            };
+
+            mPacketRotationHandlers.put(laneKey + "_rotation", handler);
+            mPacketRotationRunnables.put(laneKey + "_rotation", callback.rotation);
+            mAdvertisingSetCallbackList.put(laneKey, callback);
+
+            mBluetoothAdapter.getBluetoothLeAdvertiser().startAdvertisingSet(
+                message.parameters,
+                laneMessage.fragments[0],
+                null, // scan response
+                null, // periodic parameters
+                null, // periodic data
+                0,    // duration: until stopped
+                0,    // max extended advertising events: unlimited
+                callback,
+                handler
+            );
+        }
+
+        void onLaneStarted(int lane, InPlaceRotationCallback callback, int status) {
+            // stopBroadcast() or a new broadcast for this uid got here first; its lanes are already stopped
+            if (mAdvertisingSetCallbackList.get(uid + "#" + lane) != callback) {
+                promise.reject("Broadcast superseded by stopBroadcast() or a new broadcast for " + uid);
+                return;
+            }
+
+            if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                lanes.add(callback);
+                if (lane + 1 < maxSets) {
+                    launchLane(lane + 1);
+                    return;
+                }
+            } else {
+                mAdvertisingSetCallbackList.remove(uid + "#" + lane);
+                mPacketRotationHandlers.remove(uid + "#" + lane + "_rotation");
+                mPacketRotationRunnables.remove(uid + "#" + lane + "_rotation");
+
+                if (status == AdvertisingSetCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS) {
+                    Log.i(TAG, "Controller granted " + lane + " concurrent advertising sets");
+                } else {
+                    Log.w(TAG, "Parallel advertising set " + lane + " failed with status " + status);
+                }
+            }
+
+            finishDiscovery();
+        }
+
+        void finishDiscovery() {
+            int laneCount = lanes.size();
+            if (laneCount == 0) {
+                promise.reject("Failed to start advertising because no advertising instance is available.");
+                return;
+            }
+
+            promise.resolve(rotationResult(message, schedule, true, laneCount));
+        }
+    }
+
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -1339,7 +2272,7 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
                     
                     // Re-test advertising capabilities when Bluetooth is turned on
                     if (mBluetoothAdapter != null) {
-                        testAndCacheMaxAdvertisingLength();
+                        startCapabilityProbe(false);
                     }
                 } else if (state != BluetoothAdapter.STATE_ON && prevState == BluetoothAdapter.STATE_ON ) {
                     WritableMap params = Arguments.createMap();
@@ -1356,6 +2289,12 @@ public class BLEAdvertiserModule extends ReactContextBaseJavaModule {
             .emit(eventName, params);
     }
 
+    private void sendEvent(String eventName, WritableArray params) {
+        getReactApplicationContext()
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+            .emit(eventName, params);
+    }
+
     // @Override
     // public void onCreate() {
     //     super.onCreate();
@@ -0,0 +1,59 @@
+package com.vitorpamplona.bleavertiser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared, completable handle on the result of a capability probe.
+ *
+ * Callers that need the measured limits register a listener instead of blocking;
+ * listeners registered after completion run immediately on the caller's thread.
+ */
+class CapabilitiesFuture {
+
+    interface Listener {
+        void onReady(AdvertisingCapabilities capabilities);
+    }
+
+    private final List<Listener> mListeners = new ArrayList<>();
+    private AdvertisingCapabilities mResult;
+
+    static CapabilitiesFuture completed(AdvertisingCapabilities capabilities) {
+        CapabilitiesFuture future = new CapabilitiesFuture();
+        future.complete(capabilities);
+        return future;
+    }
+
+    synchronized boolean isDone() {
+        return mResult != null;
+    }
+
+    synchronized AdvertisingCapabilities getNow(AdvertisingCapabilities fallback) {
+        return mResult != null ? mResult : fallback;
+    }
+
+    void whenReady(Listener listener) {
+        AdvertisingCapabilities result;
+        synchronized (this) {
+            if (mResult == null) {
+                mListeners.add(listener);
+                return;
+            }
+            result = mResult;
+        }
+        listener.onReady(result);
+    }
+
+    void complete(AdvertisingCapabilities capabilities) {
+        List<Listener> listeners;
+        synchronized (this) {
+            if (mResult != null) return;
+            mResult = capabilities;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        for (Listener listener : listeners) {
+            listener.onReady(capabilities);
+        }
+    }
+}
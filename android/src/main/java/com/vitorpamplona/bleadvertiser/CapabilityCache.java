@@ -0,0 +1,83 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Persists probed {@link AdvertisingCapabilities} so warm starts can skip the radio probe.
+ *
+ * An entry is only valid for the adapter, OS build and module version that measured it; any
+ * change to those (new phone, firmware update, library upgrade) reads as a miss.
+ */
+class CapabilityCache {
+
+    private static final String TAG = BLEAdvertiserModule.TAG;
+
+    // Bump when what is stored changes meaning, so entries written before are discarded
+    private static final int STORAGE_FORMAT = 2;
+
+    private static final String PREFS_NAME = "BLEAdvertiserCapabilities";
+    private static final String KEY_IDENTITY = "identity";
+    private static final String KEY_MAX_LEGACY = "maxLegacyLength";
+    private static final String KEY_MAX_EXTENDED = "maxExtendedLength";
+    private static final String KEY_EXTENDED = "extendedAdvertising";
+    private static final String KEY_LE_2M = "le2MPhy";
+    private static final String KEY_CODED = "codedPhy";
+    private static final String KEY_PROBE_DURATION = "probeDurationMs";
+
+    private final SharedPreferences mPrefs;
+    private final String mIdentity;
+
+    CapabilityCache(Context context, BluetoothAdapter adapter) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        // The package.json version, written by Gradle: every release discards older measurements
+        mIdentity = adapterAddress(adapter) + "|" + Build.FINGERPRINT + "|" + BuildConfig.MODULE_VERSION + "|" + STORAGE_FORMAT;
+    }
+
+    private static String adapterAddress(BluetoothAdapter adapter) {
+        try {
+            return adapter.getAddress();
+        } catch (SecurityException e) {
+            // BLUETOOTH_CONNECT not granted on Android 12+: the OS build still scopes the entry
+            return "unknown";
+        }
+    }
+
+    /**
+     * @return the stored capabilities for this adapter/build/version, or null on a miss.
+     */
+    AdvertisingCapabilities load() {
+        if (!mIdentity.equals(mPrefs.getString(KEY_IDENTITY, null))) {
+            return null;
+        }
+
+        return new AdvertisingCapabilities(
+            mPrefs.getInt(KEY_MAX_LEGACY, AdvertisingCapabilities.LEGACY_MAX_LENGTH),
+            mPrefs.getInt(KEY_MAX_EXTENDED, 0),
+            mPrefs.getBoolean(KEY_EXTENDED, false),
+            mPrefs.getBoolean(KEY_LE_2M, false),
+            mPrefs.getBoolean(KEY_CODED, false),
+            mPrefs.getLong(KEY_PROBE_DURATION, 0),
+            true);
+    }
+
+    void store(AdvertisingCapabilities capabilities) {
+        mPrefs.edit()
+            .putString(KEY_IDENTITY, mIdentity)
+            .putInt(KEY_MAX_LEGACY, capabilities.maxLegacyLength)
+            .putInt(KEY_MAX_EXTENDED, capabilities.maxExtendedLength)
+            .putBoolean(KEY_EXTENDED, capabilities.extendedSupported)
+            .putBoolean(KEY_LE_2M, capabilities.le2MPhySupported)
+            .putBoolean(KEY_CODED, capabilities.codedPhySupported)
+            .putLong(KEY_PROBE_DURATION, capabilities.probeDurationMs)
+            .apply();
+        Log.i(TAG, "Stored advertising capabilities for " + mIdentity);
+    }
+
+    void invalidate() {
+        mPrefs.edit().clear().apply();
+    }
+}
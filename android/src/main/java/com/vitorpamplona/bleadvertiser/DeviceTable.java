@@ -0,0 +1,120 @@
+package com.vitorpamplona.bleavertiser;
+
+import java.util.Arrays;
+
+/**
+ * Per-device state in parallel primitive arrays, with open addressing on the 48-bit address.
+ *
+ * Subclasses keep their own arrays indexed by the slot {@link #slotFor} returns and move them in
+ * {@link #rehashState}. When the table fills up, devices not seen for STALE_MS are dropped, and a
+ * device coming back after that long starts over; either way it simply counts as new. Tables are
+ * owned by one scan worker and are not locked.
+ */
+abstract class DeviceTable {
+
+    static final long STALE_MS = 60000;
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_CAPACITY = 1 << 16;
+    private static final long EMPTY = -1;
+
+    private long[] mAddresses = new long[0];
+    private long[] mSeenAt = new long[0];
+    private int mSize;
+    private boolean mNew;
+
+    /**
+     * Allocates the first arrays; call at the end of the subclass constructor.
+     */
+    protected final void initialize() {
+        rehash(INITIAL_CAPACITY, 0, false);
+    }
+
+    /**
+     * Allocates arrays of {@code capacity} and copies slot i of the old ones to {@code newSlots[i]},
+     * skipping slots mapped to -1. {@code newSlots} is empty on the first call.
+     */
+    protected abstract void rehashState(int capacity, int[] newSlots);
+
+    /**
+     * Finds or adds the device and marks it seen at {@code now}.
+     */
+    protected final int slotFor(long address, long now) {
+        int slot = find(address);
+        if (mAddresses[slot] == EMPTY) {
+            if (mSize + 1 > mAddresses.length * 3 / 4) {
+                rebuild(now);
+                slot = find(address);
+            }
+            mAddresses[slot] = address;
+            mSize++;
+            mNew = true;
+        } else {
+            mNew = now - mSeenAt[slot] >= STALE_MS;
+        }
+        mSeenAt[slot] = now;
+        return slot;
+    }
+
+    /**
+     * Whether the last {@link #slotFor} added the device or found it stale.
+     */
+    protected final boolean isNew() {
+        return mNew;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private int find(long address) {
+        int mask = mAddresses.length - 1;
+        long hash = address * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash >>> 40) & mask;
+        while (mAddresses[slot] != EMPTY && mAddresses[slot] != address) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Rehashes the devices seen recently, growing the table when most of them are still around.
+     */
+    private void rebuild(long now) {
+        int live = 0;
+        for (int i = 0; i < mAddresses.length; i++) {
+            if (mAddresses[i] != EMPTY && now - mSeenAt[i] < STALE_MS) live++;
+        }
+
+        int capacity = mAddresses.length;
+        if (live + 1 > capacity / 2 && capacity < MAX_CAPACITY) {
+            capacity *= 2;
+        }
+        // Still full of live devices at the largest size: forget them all
+        rehash(capacity, now, live + 1 <= capacity * 3 / 4);
+    }
+
+    private void rehash(int capacity, long now, boolean keepLive) {
+        long[] addresses = mAddresses;
+        long[] seenAt = mSeenAt;
+
+        mAddresses = new long[capacity];
+        Arrays.fill(mAddresses, EMPTY);
+        mSeenAt = new long[capacity];
+        mSize = 0;
+
+        int[] newSlots = new int[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            if (!keepLive || addresses[i] == EMPTY || now - seenAt[i] >= STALE_MS) {
+                newSlots[i] = -1;
+                continue;
+            }
+            int slot = find(addresses[i]);
+            mAddresses[slot] = addresses[i];
+            mSeenAt[slot] = seenAt[i];
+            mSize++;
+            newSlots[i] = slot;
+        }
+        rehashState(capacity, newSlots);
+    }
+}
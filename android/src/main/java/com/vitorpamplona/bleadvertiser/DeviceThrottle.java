@@ -0,0 +1,65 @@
+package com.vitorpamplona.bleavertiser;
+
+import java.util.Arrays;
+
+/**
+ * Decides per device whether a scan result is worth an event.
+ *
+ * A result passes when its device is new, its payload differs from the last one emitted, its RSSI
+ * moved by at least rssiThreshold dB since then, or emitIntervalMs have passed since then (0 never
+ * repeats an unchanged result). With changesOnly, only the first two count: RSSI movement and
+ * elapsed time never emit a device again.
+ */
+class DeviceThrottle extends DeviceTable {
+
+    private final long mEmitIntervalMs;
+    private final int mRssiThreshold;
+
+    private byte[][] mPayloads;
+    private byte[] mRssi;
+    private long[] mEmittedAt;
+
+    DeviceThrottle(long emitIntervalMs, int rssiThreshold, boolean changesOnly) {
+        mEmitIntervalMs = changesOnly ? 0 : Math.max(0, emitIntervalMs);
+        mRssiThreshold = changesOnly ? 0 : Math.max(0, rssiThreshold);
+        initialize();
+    }
+
+    /**
+     * @param payload the advertised manufacturer data, or null.
+     * @return true when the result should be emitted; its state is then remembered.
+     */
+    boolean shouldEmit(long address, byte[] payload, int rssi, long now) {
+        int slot = slotFor(address, now);
+        if (!isNew()) {
+            boolean changed = !Arrays.equals(mPayloads[slot], payload)
+                              || (mRssiThreshold > 0 && Math.abs(rssi - mRssi[slot]) >= mRssiThreshold)
+                              || (mEmitIntervalMs > 0 && now - mEmittedAt[slot] >= mEmitIntervalMs);
+            if (!changed) {
+                return false;
+            }
+        }
+
+        mPayloads[slot] = payload;
+        mRssi[slot] = (byte) rssi;
+        mEmittedAt[slot] = now;
+        return true;
+    }
+
+    @Override
+    protected void rehashState(int capacity, int[] newSlots) {
+        byte[][] payloads = new byte[capacity][];
+        byte[] rssi = new byte[capacity];
+        long[] emittedAt = new long[capacity];
+        for (int i = 0; i < newSlots.length; i++) {
+            int slot = newSlots[i];
+            if (slot < 0) continue;
+            payloads[slot] = mPayloads[i];
+            rssi[slot] = mRssi[i];
+            emittedAt[slot] = mEmittedAt[i];
+        }
+        mPayloads = payloads;
+        mRssi = rssi;
+        mEmittedAt = emittedAt;
+    }
+}
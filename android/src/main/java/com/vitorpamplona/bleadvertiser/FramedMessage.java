@@ -0,0 +1,50 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSetParameters;
+
+/**
+ * A multi-packet message framed once, up front, into ready-to-send advertisements.
+ *
+ * The rotation timer only indexes into {@link #fragments}; nothing is converted, parsed
+ * or built per tick.
+ */
+class FramedMessage {
+
+    final AdvertiseData[] fragments;
+    final AdvertiseSettings settings;          // legacy advertising
+    final AdvertisingSetParameters parameters; // extended advertising, null below Android 8.0
+    final int totalPackets;                    // parity included
+    final int dataPerPacket;
+    final int parityPackets;
+    final int packetId;                        // as sent: 8 bits in header version 1, 16 in version 2
+    final int headerVersion;
+    final boolean compressed;
+
+    FramedMessage(AdvertiseData[] fragments, AdvertiseSettings settings, AdvertisingSetParameters parameters,
+                  int dataPerPacket, int parityPackets, int packetId, int headerVersion, boolean compressed) {
+        this.fragments = fragments;
+        this.settings = settings;
+        this.parameters = parameters;
+        this.totalPackets = fragments.length;
+        this.dataPerPacket = dataPerPacket;
+        this.parityPackets = parityPackets;
+        this.packetId = packetId;
+        this.headerVersion = headerVersion;
+        this.compressed = compressed;
+    }
+
+    /**
+     * All the fragments, rotated to start at {@code first}: what one of several parallel
+     * advertising sets carries so that it is a complete sender on its own.
+     */
+    FramedMessage startingAt(int first) {
+        AdvertiseData[] rotated = new AdvertiseData[totalPackets];
+        for (int i = 0; i < totalPackets; i++) {
+            rotated[i] = fragments[(first + i) % totalPackets];
+        }
+        return new FramedMessage(rotated, settings, parameters, dataPerPacket, parityPackets, packetId,
+                                 headerVersion, compressed);
+    }
+}
@@ -0,0 +1,93 @@
+package com.vitorpamplona.bleavertiser;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cheap event counters for the scan and advertise hot paths.
+ *
+ * Each counter is striped over a few cells picked by the calling thread, and every stripe sits on
+ * its own cache lines, so the Bluetooth callback thread, the rotation looper and the worker never
+ * contend on one word. Reads sum the stripes, which makes them slower but they are rare.
+ */
+class PerformanceCounters {
+
+    static final int SCAN_RESULTS = 0;
+    static final int FRAGMENTS_PARSED = 1;
+    static final int DUPLICATE_FRAGMENTS = 2;
+    static final int MESSAGES_REASSEMBLED = 3;
+    static final int BUFFERS_EXPIRED = 4;
+    static final int EVENTS_EMITTED = 5;
+    static final int ADVERTISER_STARTS = 6;
+    static final int ADVERTISER_STOPS = 7;
+    static final int ROTATION_TICKS = 8;
+    static final int SCAN_QUEUE_OVERFLOWS = 9;
+    static final int SCAN_QUEUE_DUPLICATES_DROPPED = 10;
+    static final int EVENTS_THROTTLED = 11;
+    static final int MESSAGES_RECOVERED = 12;
+    static final int FRAGMENTS_RECOVERED = 13;
+    static final int MESSAGES_DECOMPRESSED = 14;
+    static final int MESSAGES_CORRUPTED = 15;
+    static final int MESSAGES_NOT_INFLATED = 16;
+    static final int COUNT = 17;
+
+    static final String[] NAMES = {
+        "scanResults",
+        "fragmentsParsed",
+        "duplicateFragments",
+        "messagesReassembled",
+        "buffersExpired",
+        "eventsEmitted",
+        "advertiserStarts",
+        "advertiserStops",
+        "rotationTicks",
+        "scanQueueOverflows",
+        "scanQueueDuplicatesDropped",
+        "eventsThrottled",
+        "messagesRecovered",
+        "fragmentsRecovered",
+        "messagesDecompressed",
+        "messagesCorrupted",
+        "messagesNotInflated",
+    };
+
+    private static final int STRIPES = 8;
+    private static final int ROW = 24; // longs per stripe: COUNT rounded up to whole 64-byte lines
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * ROW);
+    private volatile long mLastProbeDurationMs;
+
+    void increment(int counter) {
+        add(counter, 1);
+    }
+
+    void add(int counter, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        mCells.getAndAdd(stripe * ROW + counter, delta);
+    }
+
+    long get(int counter) {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += mCells.get(stripe * ROW + counter);
+        }
+        return sum;
+    }
+
+    void recordProbeDuration(long durationMs) {
+        mLastProbeDurationMs = durationMs;
+    }
+
+    long getLastProbeDurationMs() {
+        return mLastProbeDurationMs;
+    }
+
+    /**
+     * Zeroes every counter. Increments racing with the reset may land on either side of it.
+     */
+    void reset() {
+        for (int i = 0; i < mCells.length(); i++) {
+            mCells.set(i, 0);
+        }
+        mLastProbeDurationMs = 0;
+    }
+}
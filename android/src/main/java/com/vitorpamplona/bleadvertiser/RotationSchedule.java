@@ -0,0 +1,69 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.bluetooth.le.AdvertiseSettings;
+
+/**
+ * Decides how long each multi-packet fragment stays on air.
+ *
+ * With a fixed interval every fragment is held for the same time. In adaptive mode the dwell is
+ * the advertising interval actually in effect times the number of repetitions a scanner should
+ * get per fragment, so fast advertisers cycle through a message quickly and slow ones still
+ * repeat each fragment often enough to be picked up.
+ */
+class RotationSchedule {
+
+    static final long DEFAULT_INTERVAL_MS = 500;
+    static final int DEFAULT_REPETITIONS = 3;
+
+    // Below this the controller spends more time swapping data than advertising it
+    private static final long MIN_DWELL_MS = 20;
+
+    private final long mFixedIntervalMs;
+    private final boolean mAdaptive;
+    private final int mRepetitions;
+    private volatile long mAdvertisingIntervalMs;
+
+    RotationSchedule(long fixedIntervalMs, boolean adaptive, int repetitions, long advertisingIntervalMs) {
+        mFixedIntervalMs = Math.max(MIN_DWELL_MS, fixedIntervalMs);
+        mAdaptive = adaptive;
+        mRepetitions = Math.max(1, repetitions);
+        mAdvertisingIntervalMs = advertisingIntervalMs;
+    }
+
+    boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * Records the interval reported by the stack once advertising has started.
+     */
+    void onAdvertisingIntervalInEffect(long intervalMs) {
+        mAdvertisingIntervalMs = intervalMs;
+    }
+
+    long nextDelayMs() {
+        if (!mAdaptive) return mFixedIntervalMs;
+        return Math.max(MIN_DWELL_MS, mAdvertisingIntervalMs * mRepetitions);
+    }
+
+    /**
+     * Nominal legacy advertising interval for an AdvertiseSettings mode.
+     */
+    static long intervalForAdvertiseMode(int advertiseMode) {
+        switch (advertiseMode) {
+            case AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY:
+                return 100;
+            case AdvertiseSettings.ADVERTISE_MODE_LOW_POWER:
+                return 1000;
+            default:
+                return 250;
+        }
+    }
+
+    /**
+     * Converts an AdvertisingSetParameters interval (0.625 ms units) to milliseconds.
+     */
+    static long intervalForSetInterval(int interval) {
+        return interval * 5L / 8L;
+    }
+}
@@ -0,0 +1,90 @@
+package com.vitorpamplona.bleavertiser;
+
+/**
+ * Smooths each device's RSSI and turns it into a distance estimate.
+ *
+ * With EWMA the estimate follows each reading by alpha and its variance is the exponentially
+ * weighted variance of the readings. With the 1-D Kalman filter the RSSI is modelled as a constant
+ * drifting by processNoise per reading, seen through measurementNoise (both in dB^2).
+ *
+ * Distance uses the log-distance path loss model, d = 10^((reference - rssi) / (10 n)), where the
+ * reference is the RSSI at 1 m. The confidence is d(rssi + sigma) / d: 1 when sigma is 0, towards 0
+ * as it grows. Sigma is the spread of the readings for EWMA and the estimate's error for Kalman.
+ */
+class RssiEstimator extends DeviceTable {
+
+    static final String FILTER_EWMA = "ewma";
+    static final String FILTER_KALMAN = "kalman";
+
+    // RSSI at 1 m below the advertised TX power at 0 m, and the default when neither is known
+    static final int TX_POWER_TO_1M = 41;
+    static final int DEFAULT_REFERENCE_RSSI = -59;
+
+    private final boolean mKalman;
+    private final float mAlpha;
+    private final float mProcessNoise;
+    private final float mMeasurementNoise;
+    private final double mPathLossExponent;
+
+    private float[] mEstimate;
+    private float[] mVariance;
+
+    RssiEstimator(String filter, double alpha, double processNoise, double measurementNoise, double pathLossExponent) {
+        mKalman = FILTER_KALMAN.equals(filter);
+        mAlpha = (float) Math.min(1, Math.max(0.01, alpha));
+        mProcessNoise = (float) Math.max(0, processNoise);
+        mMeasurementNoise = (float) Math.max(0.01, measurementNoise);
+        mPathLossExponent = Math.max(0.1, pathLossExponent);
+        initialize();
+    }
+
+    /**
+     * Adds a reading. The returned slot reads the device's state until the next call.
+     */
+    int observe(long address, int rssi, long now) {
+        int slot = slotFor(address, now);
+        if (isNew()) {
+            mEstimate[slot] = rssi;
+            mVariance[slot] = mMeasurementNoise;
+        } else if (mKalman) {
+            float prior = mVariance[slot] + mProcessNoise;
+            float gain = prior / (prior + mMeasurementNoise);
+            mEstimate[slot] += gain * (rssi - mEstimate[slot]);
+            mVariance[slot] = (1 - gain) * prior;
+        } else {
+            float delta = rssi - mEstimate[slot];
+            mEstimate[slot] += mAlpha * delta;
+            mVariance[slot] = (1 - mAlpha) * (mVariance[slot] + mAlpha * delta * delta);
+        }
+        return slot;
+    }
+
+    float smoothedRssi(int slot) {
+        return mEstimate[slot];
+    }
+
+    /**
+     * @return meters.
+     */
+    double distance(int slot, int referenceRssi) {
+        return Math.pow(10, (referenceRssi - mEstimate[slot]) / (10 * mPathLossExponent));
+    }
+
+    double confidence(int slot) {
+        return Math.pow(10, -Math.sqrt(mVariance[slot]) / (10 * mPathLossExponent));
+    }
+
+    @Override
+    protected void rehashState(int capacity, int[] newSlots) {
+        float[] estimate = new float[capacity];
+        float[] variance = new float[capacity];
+        for (int i = 0; i < newSlots.length; i++) {
+            int slot = newSlots[i];
+            if (slot < 0) continue;
+            estimate[slot] = mEstimate[i];
+            variance[slot] = mVariance[i];
+        }
+        mEstimate = estimate;
+        mVariance = variance;
+    }
+}
@@ -0,0 +1,102 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects scan events natively and hands them to JS as one array per batch.
+ *
+ * A batch is flushed when it holds maxBatchSize events or when its oldest event has waited
+ * maxLatencyMs, whichever comes first. With the latest-per-device policy a newer advertisement
+ * from the same device replaces the pending one instead of growing the batch.
+ */
+class ScanEventBatcher {
+
+    static final String POLICY_LOSSLESS = "lossless";
+    static final String POLICY_LATEST_PER_DEVICE = "latestPerDevice";
+
+    interface Sink {
+        void onBatch(WritableArray batch);
+    }
+
+    private final Handler mHandler;
+    private final Sink mSink;
+
+    private final List<WritableMap> mPending = new ArrayList<>();
+    private final Map<String, Integer> mPendingIndexByDevice = new HashMap<>();
+
+    private int mMaxBatchSize;
+    private long mMaxLatencyMs;
+    private boolean mLatestPerDevice;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ScanEventBatcher(Looper looper, Sink sink, int maxBatchSize, long maxLatencyMs, String policy) {
+        mHandler = new Handler(looper);
+        mSink = sink;
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mMaxLatencyMs = Math.max(0, maxLatencyMs);
+        mLatestPerDevice = POLICY_LATEST_PER_DEVICE.equals(policy);
+    }
+
+    /**
+     * @param deviceAddress null, or coalescable false, for events that must never be replaced
+     *                      (e.g. reassembled messages).
+     */
+    void add(String deviceAddress, WritableMap event, boolean coalescable) {
+        boolean full;
+        synchronized (this) {
+            Integer pendingIndex = null;
+            if (mLatestPerDevice && coalescable && deviceAddress != null) {
+                pendingIndex = mPendingIndexByDevice.get(deviceAddress);
+            }
+
+            if (pendingIndex != null) {
+                mPending.set(pendingIndex, event);
+            } else {
+                if (mLatestPerDevice && coalescable && deviceAddress != null) {
+                    mPendingIndexByDevice.put(deviceAddress, mPending.size());
+                }
+                mPending.add(event);
+                if (mPending.size() == 1) {
+                    mHandler.postDelayed(mFlushRunnable, mMaxLatencyMs);
+                }
+            }
+            full = mPending.size() >= mMaxBatchSize;
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    void flush() {
+        WritableArray batch;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            if (mPending.isEmpty()) return;
+
+            batch = Arguments.createArray();
+            for (WritableMap event : mPending) {
+                batch.pushMap(event);
+            }
+            mPending.clear();
+            mPendingIndexByDevice.clear();
+        }
+        mSink.onBatch(batch);
+    }
+}
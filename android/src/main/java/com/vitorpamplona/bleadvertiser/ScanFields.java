@@ -0,0 +1,70 @@
+package com.vitorpamplona.bleavertiser;
+
+import com.facebook.react.bridge.ReadableArray;
+
+/**
+ * The scan event fields JS asked for, compiled once per scan into a bitmask.
+ *
+ * "manufData" also brings companyId, isReassembled and originalPackets along; they describe the
+ * payload and cost nothing extra. Results are still reassembled when manufData is left out, so
+ * incomplete fragments are never emitted as devices.
+ */
+final class ScanFields {
+
+    static final int DEVICE_ADDRESS = 1;
+    static final int RSSI = 1 << 1;
+    static final int MANUF_DATA = 1 << 2;
+    static final int SERVICE_UUIDS = 1 << 3;
+    static final int TX_POWER = 1 << 4;
+    static final int DEVICE_NAME = 1 << 5;
+    static final int ADV_FLAGS = 1 << 6;
+    static final int SCAN_RECORD = 1 << 7;
+    static final int IS_LEGACY = 1 << 8;
+    static final int IS_CONNECTABLE = 1 << 9;
+    static final int DATA_STATUS = 1 << 10;
+    static final int PRIMARY_PHY = 1 << 11;
+    static final int SECONDARY_PHY = 1 << 12;
+    static final int SMOOTHED_RSSI = 1 << 13;
+    static final int DISTANCE = 1 << 14;
+    static final int DISTANCE_CONFIDENCE = 1 << 15;
+    static final int SESSION_IDS = 1 << 16;
+
+    private static final String[] NAMES = {
+        "deviceAddress", "rssi", "manufData", "serviceUuids", "txPower", "deviceName", "advFlags", "scanRecord",
+        "isLegacy", "isConnectable", "dataStatus", "primaryPhy", "secondaryPhy", "smoothedRssi", "distance",
+        "distanceConfidence", "sessionIds"
+    };
+
+    // Not a field: asks for sessionIds only while more than one session shares the scan
+    static final int SESSION_IDS_IF_SHARED = 1 << NAMES.length;
+
+    // Everything a scan reports; scanRecord stays opt-in, the estimates need rssiFilter, and
+    // sessionIds, one array per event, only tells sessions apart when there are several
+    static final int DEFAULT = ((1 << NAMES.length) - 1) & ~SCAN_RECORD & ~SESSION_IDS | SESSION_IDS_IF_SHARED;
+
+    static final int EXTENDED = IS_LEGACY | IS_CONNECTABLE | DATA_STATUS | PRIMARY_PHY | SECONDARY_PHY;
+    static final int ESTIMATES = SMOOTHED_RSSI | DISTANCE | DISTANCE_CONFIDENCE;
+
+    private ScanFields() {
+    }
+
+    /**
+     * @throws IllegalArgumentException for a name that is not a scan event field.
+     */
+    static int parse(ReadableArray fields) {
+        int mask = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            mask |= bit(fields.getString(i));
+        }
+        return mask;
+    }
+
+    private static int bit(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return 1 << i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown scan field: " + name);
+    }
+}
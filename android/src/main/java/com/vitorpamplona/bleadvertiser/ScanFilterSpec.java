@@ -0,0 +1,335 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * One scan filter: every predicate it sets must match. A scan matches any of its filters.
+ *
+ * Manufacturer data and service data match as masked prefixes, like ScanFilter: byte i must equal
+ * data[i] in the bits set in mask[i] (all bits without a mask). minRssi cannot be offloaded and is
+ * only checked in software, which re-checks every predicate before an event is built.
+ */
+class ScanFilterSpec {
+
+    // Controllers only hold a few filters; past this the specs are relaxed, then dropped
+    static final int MAX_HARDWARE_FILTERS = 16;
+
+    private final String mDeviceAddress;
+    private final int mManufacturerId;   // only used with mManufacturerData
+    private final byte[] mManufacturerData;
+    private final byte[] mManufacturerMask;
+    private final ParcelUuid mServiceUuid;
+    private final ParcelUuid mServiceUuidMask;
+    private final ParcelUuid mServiceDataUuid;
+    private final byte[] mServiceData;
+    private final byte[] mServiceDataMask;
+    private final int mMinRssi;          // Integer.MIN_VALUE when unset
+
+    ScanFilterSpec(String deviceAddress, int manufacturerId, byte[] manufacturerData, byte[] manufacturerMask,
+                   ParcelUuid serviceUuid, ParcelUuid serviceUuidMask, ParcelUuid serviceDataUuid,
+                   byte[] serviceData, byte[] serviceDataMask, int minRssi) {
+        mDeviceAddress = deviceAddress != null ? deviceAddress.toUpperCase(Locale.US) : null;
+        mManufacturerId = manufacturerId;
+        mManufacturerData = manufacturerData;
+        mManufacturerMask = manufacturerMask;
+        mServiceUuid = serviceUuid;
+        mServiceUuidMask = serviceUuidMask;
+        mServiceDataUuid = serviceDataUuid;
+        mServiceData = serviceData;
+        mServiceDataMask = serviceDataMask;
+        mMinRssi = minRssi;
+    }
+
+    static ScanFilterSpec manufacturerPrefix(int companyId, byte[] prefix) {
+        return new ScanFilterSpec(null, companyId, prefix, null, null, null, null, null, null, Integer.MIN_VALUE);
+    }
+
+    static ScanFilterSpec serviceUuid(ParcelUuid uuid) {
+        return new ScanFilterSpec(null, 0, null, null, uuid, null, null, null, null, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Parses one JS filter. A deviceAddress array becomes one filter per address.
+     *
+     * @throws IllegalArgumentException for malformed UUIDs, addresses, data or masks.
+     */
+    static List<ScanFilterSpec> fromMap(ReadableMap map, int companyId) {
+        int manufacturerId = map.hasKey("manufacturerId") ? map.getInt("manufacturerId") : companyId;
+        byte[] manufacturerData = bytes(map, "manufData");
+        byte[] manufacturerMask = bytes(map, "manufDataMask");
+        ParcelUuid serviceUuid = uuid(map, "serviceUuid");
+        ParcelUuid serviceUuidMask = uuid(map, "serviceUuidMask");
+        ParcelUuid serviceDataUuid = uuid(map, "serviceDataUuid");
+        byte[] serviceData = bytes(map, "serviceData");
+        byte[] serviceDataMask = bytes(map, "serviceDataMask");
+        int minRssi = map.hasKey("minRssi") ? map.getInt("minRssi") : Integer.MIN_VALUE;
+
+        if (manufacturerData == null && map.hasKey("manufacturerId")) {
+            // Any data under that id
+            manufacturerData = new byte[0];
+        }
+
+        checkMask("manufData", manufacturerData, manufacturerMask);
+        checkMask("serviceData", serviceData, serviceDataMask);
+        if (serviceUuidMask != null && serviceUuid == null) {
+            throw new IllegalArgumentException("serviceUuidMask needs serviceUuid");
+        }
+        if (serviceData != null && serviceDataUuid == null) {
+            throw new IllegalArgumentException("serviceData needs serviceDataUuid");
+        }
+
+        List<String> addresses = new ArrayList<>();
+        if (map.hasKey("deviceAddress")) {
+            if (map.getType("deviceAddress") == ReadableType.Array) {
+                ReadableArray array = map.getArray("deviceAddress");
+                for (int i = 0; i < array.size(); i++) {
+                    addresses.add(address(array.getString(i)));
+                }
+            } else {
+                addresses.add(address(map.getString("deviceAddress")));
+            }
+        } else {
+            addresses.add(null);
+        }
+
+        List<ScanFilterSpec> specs = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            specs.add(new ScanFilterSpec(address, manufacturerId, manufacturerData, manufacturerMask, serviceUuid,
+                                         serviceUuidMask, serviceDataUuid, serviceData, serviceDataMask, minRssi));
+        }
+        return specs;
+    }
+
+    private static byte[] bytes(ReadableMap map, String key) {
+        return map.hasKey(key) ? BLEAdvertiserModule.toByteArray(map.getDynamic(key)) : null;
+    }
+
+    private static ParcelUuid uuid(ReadableMap map, String key) {
+        return map.hasKey(key) ? ParcelUuid.fromString(map.getString(key)) : null;
+    }
+
+    private static String address(String address) {
+        if (address == null || !address.matches("([0-9A-Fa-f]{2}:){5}[0-9A-Fa-f]{2}")) {
+            throw new IllegalArgumentException("Invalid device address: " + address);
+        }
+        return address;
+    }
+
+    private static void checkMask(String name, byte[] data, byte[] mask) {
+        if (mask != null && (data == null || mask.length != data.length)) {
+            throw new IllegalArgumentException(name + "Mask must be as long as " + name);
+        }
+    }
+
+    /**
+     * Whether the controller can check anything of this filter; minRssi alone it cannot.
+     */
+    private boolean isOffloadable() {
+        return mDeviceAddress != null || mManufacturerData != null || mServiceUuid != null || mServiceDataUuid != null;
+    }
+
+    /**
+     * The full check, run on the scan workers.
+     */
+    boolean matches(ScanResult result) {
+        if (mMinRssi != Integer.MIN_VALUE && result.getRssi() < mMinRssi) return false;
+        if (mDeviceAddress != null
+            && (result.getDevice() == null || !mDeviceAddress.equalsIgnoreCase(result.getDevice().getAddress()))) {
+            return false;
+        }
+
+        ScanRecord record = result.getScanRecord();
+        if (mManufacturerData != null) {
+            if (record == null) return false;
+            if (!maskedPrefix(record.getManufacturerSpecificData(mManufacturerId), mManufacturerData, mManufacturerMask)) {
+                return false;
+            }
+        }
+
+        if (mServiceUuid != null) {
+            if (record == null || record.getServiceUuids() == null) return false;
+            boolean found = false;
+            for (ParcelUuid uuid : record.getServiceUuids()) {
+                if (maskedUuid(uuid.getUuid())) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+
+        if (mServiceDataUuid != null) {
+            if (record == null) return false;
+            byte[] data = record.getServiceData(mServiceDataUuid);
+            if (data == null) return false;
+            if (mServiceData != null && !maskedPrefix(data, mServiceData, mServiceDataMask)) return false;
+        }
+        return true;
+    }
+
+    private boolean maskedUuid(UUID uuid) {
+        UUID expected = mServiceUuid.getUuid();
+        if (mServiceUuidMask == null) return expected.equals(uuid);
+        UUID mask = mServiceUuidMask.getUuid();
+        return ((uuid.getMostSignificantBits() ^ expected.getMostSignificantBits()) & mask.getMostSignificantBits()) == 0
+               && ((uuid.getLeastSignificantBits() ^ expected.getLeastSignificantBits()) & mask.getLeastSignificantBits()) == 0;
+    }
+
+    private static boolean maskedPrefix(byte[] actual, byte[] expected, byte[] mask) {
+        if (actual == null || actual.length < expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            int bits = mask != null ? mask[i] : 0xFF;
+            if (((actual[i] ^ expected[i]) & bits) != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether every result this filter lets through, minRssi aside, also passes {@code other}.
+     * Used to drop filters the hardware would not need.
+     */
+    private boolean implies(ScanFilterSpec other) {
+        if (other.mDeviceAddress != null && !other.mDeviceAddress.equals(mDeviceAddress)) return false;
+
+        if (other.mManufacturerData != null) {
+            if (mManufacturerData == null || mManufacturerId != other.mManufacturerId) return false;
+            if (!patternImplies(mManufacturerData, mManufacturerMask, other.mManufacturerData, other.mManufacturerMask)) {
+                return false;
+            }
+        }
+
+        if (other.mServiceUuid != null) {
+            if (mServiceUuid == null || !mServiceUuid.equals(other.mServiceUuid)) return false;
+            if (other.mServiceUuidMask != null ? !other.mServiceUuidMask.equals(mServiceUuidMask) : mServiceUuidMask != null) {
+                return false;
+            }
+        }
+
+        if (other.mServiceDataUuid != null) {
+            if (mServiceDataUuid == null || !mServiceDataUuid.equals(other.mServiceDataUuid)) return false;
+            if (other.mServiceData != null) {
+                if (mServiceData == null) return false;
+                if (!patternImplies(mServiceData, mServiceDataMask, other.mServiceData, other.mServiceDataMask)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A masked prefix implies a looser one when it fixes at least the same bits to the same values.
+     */
+    private static boolean patternImplies(byte[] data, byte[] mask, byte[] looserData, byte[] looserMask) {
+        if (looserData.length > data.length) return false;
+        for (int i = 0; i < looserData.length; i++) {
+            int bits = mask != null ? mask[i] & 0xFF : 0xFF;
+            int looserBits = looserMask != null ? looserMask[i] & 0xFF : 0xFF;
+            if ((looserBits & ~bits) != 0) return false;
+            if (((data[i] ^ looserData[i]) & looserBits) != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The same filter without data, masks and RSSI: what to offload when there are too many.
+     */
+    private ScanFilterSpec relaxed() {
+        return new ScanFilterSpec(mDeviceAddress, mManufacturerId, mManufacturerData != null ? new byte[0] : null, null,
+                                  mServiceUuid, null, mServiceDataUuid, null, null, Integer.MIN_VALUE);
+    }
+
+    private ScanFilter toScanFilter() {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+        if (mDeviceAddress != null) {
+            builder.setDeviceAddress(mDeviceAddress);
+        }
+        if (mManufacturerData != null) {
+            if (mManufacturerMask != null) {
+                builder.setManufacturerData(mManufacturerId, mManufacturerData, mManufacturerMask);
+            } else {
+                builder.setManufacturerData(mManufacturerId, mManufacturerData);
+            }
+        }
+        if (mServiceUuid != null) {
+            if (mServiceUuidMask != null) {
+                builder.setServiceUuid(mServiceUuid, mServiceUuidMask);
+            } else {
+                builder.setServiceUuid(mServiceUuid);
+            }
+        }
+        if (mServiceDataUuid != null) {
+            byte[] data = mServiceData != null ? mServiceData : new byte[0];
+            if (mServiceDataMask != null) {
+                builder.setServiceData(mServiceDataUuid, data, mServiceDataMask);
+            } else {
+                builder.setServiceData(mServiceDataUuid, data);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The smallest set of hardware filters letting through everything the specs match: filters
+     * implied by another one are dropped. Past MAX_HARDWARE_FILTERS every filter is relaxed to its
+     * ids, and past that again the scan goes unfiltered.
+     *
+     * @return null for an unfiltered scan.
+     */
+    static Set<ScanFilter> compile(List<ScanFilterSpec> specs) {
+        List<ScanFilterSpec> minimal = minimize(specs);
+        if (minimal != null && minimal.size() > MAX_HARDWARE_FILTERS) {
+            List<ScanFilterSpec> relaxed = new ArrayList<>(minimal.size());
+            for (ScanFilterSpec spec : minimal) {
+                relaxed.add(spec.relaxed());
+            }
+            minimal = minimize(relaxed);
+        }
+        if (minimal == null || minimal.size() > MAX_HARDWARE_FILTERS) {
+            return null;
+        }
+
+        Set<ScanFilter> filters = new LinkedHashSet<>();
+        for (ScanFilterSpec spec : minimal) {
+            filters.add(spec.toScanFilter());
+        }
+        return filters;
+    }
+
+    /**
+     * @return the specs no other spec makes redundant, or null when one lets everything through.
+     */
+    private static List<ScanFilterSpec> minimize(List<ScanFilterSpec> specs) {
+        List<ScanFilterSpec> kept = new ArrayList<>();
+        for (ScanFilterSpec spec : specs) {
+            if (!spec.isOffloadable()) return null;
+
+            boolean redundant = false;
+            for (int i = kept.size() - 1; i >= 0; i--) {
+                if (spec.implies(kept.get(i))) {
+                    redundant = true;
+                    break;
+                }
+                if (kept.get(i).implies(spec)) {
+                    kept.remove(i);
+                }
+            }
+            if (!redundant) {
+                kept.add(spec);
+            }
+        }
+        return kept;
+    }
+}
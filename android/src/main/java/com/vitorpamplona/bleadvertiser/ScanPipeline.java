@@ -0,0 +1,359 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.vitorpamplona.bleavertiser.codec.FragmentDecoder;
+import com.vitorpamplona.bleavertiser.codec.MessageCompression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves scan result processing off the Bluetooth callback thread.
+ *
+ * The callback only enqueues. Results are partitioned by device address over a few worker
+ * threads, each with its own bounded {@link ScanQueue} and {@link FragmentDecoder}, so a
+ * device's fragments are always handled in order by the same worker and the workers share no
+ * locks. When a worker falls behind, its queue drops the oldest result, or with the
+ * drop-duplicate policy first drops repeats of an advertisement that is already queued.
+ */
+class ScanPipeline {
+
+    static final String POLICY_DROP_OLDEST = "dropOldest";
+    static final String POLICY_DROP_DUPLICATE = "dropDuplicate";
+
+    private static final long CLEANUP_INTERVAL_MS = 5000;
+
+    interface Processor {
+        /**
+         * Runs on the worker that owns the result's device. {@code batch} is non-null for results
+         * that arrived through onBatchScanResults.
+         */
+        void process(Worker worker, ScanResult result, Batch batch);
+
+        /**
+         * Runs once every result of a hardware batch was processed (or dropped).
+         */
+        void onBatchProcessed(Batch batch);
+    }
+
+    /**
+     * Collects the events of one hardware batch from every worker it was split across.
+     */
+    static class Batch {
+        private final AtomicInteger mPendingParts;
+        private final WritableArray mEvents = Arguments.createArray();
+        private int mEventCount;
+
+        Batch(int parts) {
+            mPendingParts = new AtomicInteger(parts);
+        }
+
+        synchronized void add(WritableMap event) {
+            mEvents.pushMap(event);
+            mEventCount++;
+        }
+
+        synchronized int size() {
+            return mEventCount;
+        }
+
+        synchronized WritableArray events() {
+            return mEvents;
+        }
+    }
+
+    /**
+     * Per-device emission control, see {@link DeviceThrottle}.
+     */
+    static class ThrottleSettings {
+        final long emitIntervalMs;
+        final int rssiThreshold;
+        final boolean changesOnly;
+
+        ThrottleSettings(long emitIntervalMs, int rssiThreshold, boolean changesOnly) {
+            this.emitIntervalMs = emitIntervalMs;
+            this.rssiThreshold = rssiThreshold;
+            this.changesOnly = changesOnly;
+        }
+    }
+
+    /**
+     * RSSI smoothing and distance estimation, see {@link RssiEstimator}.
+     */
+    static class EstimatorSettings {
+        final String filter;
+        final double alpha;
+        final double processNoise;
+        final double measurementNoise;
+        final double pathLossExponent;
+
+        EstimatorSettings(String filter, double alpha, double processNoise, double measurementNoise,
+                          double pathLossExponent) {
+            this.filter = filter;
+            this.alpha = alpha;
+            this.processNoise = processNoise;
+            this.measurementNoise = measurementNoise;
+            this.pathLossExponent = pathLossExponent;
+        }
+    }
+
+    private static class Item {
+        final ScanResult result;
+        final List<ScanResult> batchPart;
+        final Batch batch;
+
+        Item(ScanResult result) {
+            this.result = result;
+            this.batchPart = null;
+            this.batch = null;
+        }
+
+        Item(List<ScanResult> batchPart, Batch batch) {
+            this.result = null;
+            this.batchPart = batchPart;
+            this.batch = batch;
+        }
+    }
+
+    class Worker {
+        final FragmentDecoder decoder;
+        final DeviceThrottle throttle;   // null when every result is emitted
+        final RssiEstimator estimator;   // null without rssiFilter
+
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        private final ScanQueue<Item> mQueue;
+        private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private final Runnable mCleanup = new Runnable() {
+            @Override
+            public void run() {
+                int expired = decoder.expire(System.currentTimeMillis(), mPacketTimeoutMs);
+                if (expired > 0) {
+                    mCounters.add(PerformanceCounters.BUFFERS_EXPIRED, expired);
+                }
+                mHandler.postDelayed(this, CLEANUP_INTERVAL_MS);
+            }
+        };
+
+        Worker(int index, int queueCapacity, int reassemblyCapacity, int completedCapacity, long reemitIntervalMs,
+               boolean dedupBloomFilter, ThrottleSettings throttleSettings, EstimatorSettings estimatorSettings,
+               MessageCompression compression, int headerVersion) {
+            decoder = new FragmentDecoder(reassemblyCapacity, completedCapacity, reemitIntervalMs);
+            decoder.setReemitInterval(reemitIntervalMs, dedupBloomFilter);
+            decoder.setCompression(compression);
+            decoder.setHeaderVersion(headerVersion);
+            throttle = throttleSettings != null
+                       ? new DeviceThrottle(throttleSettings.emitIntervalMs, throttleSettings.rssiThreshold,
+                                            throttleSettings.changesOnly) : null;
+            estimator = estimatorSettings != null
+                        ? new RssiEstimator(estimatorSettings.filter, estimatorSettings.alpha,
+                                            estimatorSettings.processNoise, estimatorSettings.measurementNoise,
+                                            estimatorSettings.pathLossExponent) : null;
+
+            mQueue = new ScanQueue<>(queueCapacity);
+            mThread = new HandlerThread("BLEAdvertiserScan-" + index);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+            mHandler.postDelayed(mCleanup, CLEANUP_INTERVAL_MS);
+        }
+
+        void enqueue(final Item item) {
+            while (!mQueue.offer(item)) {
+                if (mDropDuplicates && item.result != null && mQueue.anyMatch(new ScanQueue.Matcher<Item>() {
+                    @Override
+                    public boolean matches(Item queued) {
+                        return queued.result != null && isSameAdvertisement(queued.result, item.result);
+                    }
+                })) {
+                    mCounters.increment(PerformanceCounters.SCAN_QUEUE_DUPLICATES_DROPPED);
+                    return;
+                }
+
+                Item dropped = mQueue.poll();
+                if (dropped != null) {
+                    mCounters.increment(PerformanceCounters.SCAN_QUEUE_OVERFLOWS);
+                    if (dropped.batch != null) {
+                        finishBatchPart(dropped.batch);
+                    }
+                }
+            }
+
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                mHandler.post(mDrain);
+            }
+        }
+
+        private void drain() {
+            for (;;) {
+                Item item;
+                while ((item = mQueue.poll()) != null) {
+                    if (item.result != null) {
+                        mProcessor.process(this, item.result, null);
+                    } else {
+                        for (ScanResult result : item.batchPart) {
+                            mProcessor.process(this, result, item.batch);
+                        }
+                        finishBatchPart(item.batch);
+                    }
+                }
+
+                mDrainScheduled.set(false);
+                // An offer may have landed between the last poll and the flag reset
+                if (mQueue.isEmpty() || !mDrainScheduled.compareAndSet(false, true)) return;
+            }
+        }
+
+        int queued() {
+            return mQueue.size();
+        }
+    }
+
+    private final Worker[] mWorkers;
+    private final Processor mProcessor;
+    private final PerformanceCounters mCounters;
+    private final boolean mDropDuplicates;
+    private final long mPacketTimeoutMs;
+
+    ScanPipeline(int workerCount, int queueCapacity, String policy, int reassemblyCapacity, int completedCapacity,
+                 long reemitIntervalMs, boolean dedupBloomFilter, ThrottleSettings throttleSettings,
+                 EstimatorSettings estimatorSettings, MessageCompression compression, int headerVersion,
+                 long packetTimeoutMs,
+                 PerformanceCounters counters, Processor processor) {
+        mProcessor = processor;
+        mCounters = counters;
+        mDropDuplicates = POLICY_DROP_DUPLICATE.equals(policy);
+        mPacketTimeoutMs = packetTimeoutMs;
+
+        mWorkers = new Worker[Math.max(1, workerCount)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i, queueCapacity, reassemblyCapacity, completedCapacity, reemitIntervalMs,
+                                     dedupBloomFilter, throttleSettings, estimatorSettings, compression,
+                                     headerVersion);
+        }
+    }
+
+    static int defaultWorkerCount() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Called from the Bluetooth callback thread.
+     */
+    void submit(ScanResult result) {
+        workerFor(result).enqueue(new Item(result));
+    }
+
+    /**
+     * Splits a time-ordered hardware batch by worker, keeping each device's results in order.
+     */
+    void submitBatch(List<ScanResult> results) {
+        List<List<ScanResult>> parts = new ArrayList<>(mWorkers.length);
+        for (int i = 0; i < mWorkers.length; i++) {
+            parts.add(null);
+        }
+
+        int partCount = 0;
+        for (ScanResult result : results) {
+            int worker = workerIndex(result);
+            List<ScanResult> part = parts.get(worker);
+            if (part == null) {
+                part = new ArrayList<>();
+                parts.set(worker, part);
+                partCount++;
+            }
+            part.add(result);
+        }
+        if (partCount == 0) return;
+
+        Batch batch = new Batch(partCount);
+        for (int i = 0; i < mWorkers.length; i++) {
+            if (parts.get(i) != null) {
+                mWorkers[i].enqueue(new Item(parts.get(i), batch));
+            }
+        }
+    }
+
+    /**
+     * Processes what is still queued, then stops the workers and runs {@code onDrained}
+     * (on the last worker to finish).
+     */
+    void shutdown(final Runnable onDrained) {
+        final AtomicInteger running = new AtomicInteger(mWorkers.length);
+        for (final Worker worker : mWorkers) {
+            worker.mHandler.removeCallbacks(worker.mCleanup);
+            worker.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    worker.drain();
+                    worker.mThread.quit();
+                    if (running.decrementAndGet() == 0 && onDrained != null) {
+                        onDrained.run();
+                    }
+                }
+            });
+        }
+    }
+
+    int messagesInFlight() {
+        int total = 0;
+        for (Worker worker : mWorkers) {
+            total += worker.decoder.inFlight();
+        }
+        return total;
+    }
+
+    int queued() {
+        int total = 0;
+        for (Worker worker : mWorkers) {
+            total += worker.queued();
+        }
+        return total;
+    }
+
+    private void finishBatchPart(Batch batch) {
+        if (batch.mPendingParts.decrementAndGet() == 0) {
+            mProcessor.onBatchProcessed(batch);
+        }
+    }
+
+    private Worker workerFor(ScanResult result) {
+        return mWorkers[workerIndex(result)];
+    }
+
+    private int workerIndex(ScanResult result) {
+        if (mWorkers.length == 1 || result.getDevice() == null) return 0;
+
+        long address = FragmentDecoder.parseAddress(result.getDevice().getAddress());
+        int hash = (int) (address ^ (address >>> 24));
+        hash ^= hash >>> 16;
+        return (hash & 0x7FFFFFFF) % mWorkers.length;
+    }
+
+    private static boolean isSameAdvertisement(ScanResult a, ScanResult b) {
+        if (a.getDevice() == null || b.getDevice() == null) return false;
+        if (!a.getDevice().getAddress().equals(b.getDevice().getAddress())) return false;
+
+        ScanRecord recordA = a.getScanRecord();
+        ScanRecord recordB = b.getScanRecord();
+        if (recordA == null || recordB == null) return recordA == recordB;
+        return Arrays.equals(recordA.getBytes(), recordB.getBytes());
+    }
+}
@@ -0,0 +1,113 @@
+package com.vitorpamplona.bleavertiser;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue between the Bluetooth callback thread and a scan worker.
+ *
+ * Every slot carries a sequence number that says whether it is free for the producer at a given
+ * position or holds the item for the consumer at that position (Vyukov's bounded queue), so
+ * neither side ever takes a lock. Any thread may poll, which is how a producer drops the oldest
+ * item when the queue is full.
+ */
+class ScanQueue<T> {
+
+    interface Matcher<T> {
+        boolean matches(T item);
+    }
+
+    private final AtomicReferenceArray<T> mItems;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();   // next position to poll
+    private final AtomicLong mTail = new AtomicLong();   // next position to offer
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    ScanQueue(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mItems = new AtomicReferenceArray<>(slots);
+        mSequences = new AtomicLongArray(slots);
+        mMask = slots - 1;
+        for (int i = 0; i < slots; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return false when the queue is full.
+     */
+    boolean offer(T item) {
+        long position = mTail.get();
+        for (;;) {
+            int index = (int) position & mMask;
+            long available = mSequences.get(index) - position;
+            if (available == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mItems.set(index, item);
+                    mSequences.set(index, position + 1);   // publishes the item
+                    return true;
+                }
+                position = mTail.get();
+            } else if (available < 0) {
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest item, or null when the queue is empty.
+     */
+    T poll() {
+        long position = mHead.get();
+        for (;;) {
+            int index = (int) position & mMask;
+            long available = mSequences.get(index) - (position + 1);
+            if (available == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    T item = mItems.get(index);
+                    mItems.set(index, null);
+                    mSequences.set(index, position + mMask + 1);   // frees the slot for the next lap
+                    return item;
+                }
+                position = mHead.get();
+            } else if (available < 0) {
+                return null;
+            } else {
+                position = mHead.get();
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return mTail.get() - mHead.get() <= 0;
+    }
+
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * Best-effort scan of the queued items; items polled concurrently may or may not be seen.
+     */
+    boolean anyMatch(Matcher<T> matcher) {
+        long tail = mTail.get();
+        for (long position = mHead.get(); position < tail; position++) {
+            int index = (int) position & mMask;
+            if (mSequences.get(index) != position + 1) continue;
+            T item = mItems.get(index);
+            if (item != null && matcher.matches(item)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,143 @@
+package com.vitorpamplona.bleavertiser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-layout scan records in one array, written by the scan workers and drained by JS. The
+ * drained records are copied out for base64 anyway, so a direct buffer would buy nothing.
+ *
+ * Every slot holds a 24-byte little-endian header followed by up to payloadCapacity payload bytes:
+ *
+ *   0  address        6 bytes, most significant first (as in "AA:BB:...")
+ *   6  rssi           int8
+ *   7  flags          uint8, see FLAG_*
+ *   8  primaryPhy     uint8
+ *   9  secondaryPhy   uint8
+ *   10 payloadLength  uint16, bytes stored after the header
+ *   12 packets        uint8, fragments a reassembled payload was sent in (0 otherwise)
+ *   13 reserved       3 bytes
+ *   16 timestamp      float64, ms since the epoch
+ *
+ * When the ring is full the oldest record is overwritten. {@link #drain()} returns the pending
+ * records packed back to back, each one header plus its payloadLength bytes.
+ */
+class ScanRecordRing {
+
+    static final int HEADER_SIZE = 24;
+
+    static final int FLAG_LEGACY = 1;
+    static final int FLAG_CONNECTABLE = 1 << 1;
+    static final int FLAG_REASSEMBLED = 1 << 2;
+    static final int FLAG_TRUNCATED = 1 << 3;
+
+    /** Largest ring, all slots together. */
+    static final int MAX_BUFFER_SIZE = 64 << 20;
+
+    private final byte[] mRecords;
+    private final ByteBuffer mBuffer;
+    private final int mSlots;
+    private final int mSlotSize;
+    private final int mPayloadCapacity;
+
+    private long mHead;   // next record to drain
+    private long mTail;   // next record to write
+    private long mOverwritten;
+
+    /**
+     * @throws IllegalArgumentException see {@link #checkCapacity(int, int)}.
+     */
+    ScanRecordRing(int slots, int payloadCapacity) {
+        checkCapacity(slots, payloadCapacity);
+        mSlots = slots;
+        mPayloadCapacity = payloadCapacity;
+        mSlotSize = HEADER_SIZE + payloadCapacity;
+        mRecords = new byte[mSlots * mSlotSize];
+        mBuffer = ByteBuffer.wrap(mRecords).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @throws IllegalArgumentException when there is no slot, the payload capacity is negative or
+     *         past 0xFFFF, or the slots take more than {@link #MAX_BUFFER_SIZE} bytes.
+     */
+    static void checkCapacity(int slots, int payloadCapacity) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("ringCapacity must be at least 1, got " + slots);
+        }
+        if (payloadCapacity < 0 || payloadCapacity > 0xFFFF) {
+            throw new IllegalArgumentException("ringPayloadCapacity must be between 0 and 65535, got " + payloadCapacity);
+        }
+        long size = (long) slots * (HEADER_SIZE + payloadCapacity);
+        if (size > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("A ring of " + slots + " records of " + payloadCapacity
+                                               + " bytes takes " + size + " bytes, more than " + MAX_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * @return true when the ring was empty before this record, i.e. JS may need a nudge.
+     */
+    synchronized boolean write(long address, int rssi, int flags, int primaryPhy, int secondaryPhy, int packets,
+                               double timestamp, byte[] payload, int offset, int length) {
+        boolean wasEmpty = mTail == mHead;
+        if (mTail - mHead == mSlots) {
+            mHead++;
+            mOverwritten++;
+        }
+
+        int stored = Math.min(length, mPayloadCapacity);
+        if (stored < length) {
+            flags |= FLAG_TRUNCATED;
+        }
+
+        int base = (int) (mTail % mSlots) * mSlotSize;
+        for (int i = 0; i < 6; i++) {
+            mBuffer.put(base + i, (byte) (address >>> (40 - 8 * i)));
+        }
+        mBuffer.put(base + 6, (byte) rssi);
+        mBuffer.put(base + 7, (byte) flags);
+        mBuffer.put(base + 8, (byte) primaryPhy);
+        mBuffer.put(base + 9, (byte) secondaryPhy);
+        mBuffer.putShort(base + 10, (short) stored);
+        mBuffer.put(base + 12, (byte) packets);
+        mBuffer.put(base + 13, (byte) 0);
+        mBuffer.putShort(base + 14, (short) 0);
+        mBuffer.putDouble(base + 16, timestamp);
+
+        System.arraycopy(payload, offset, mRecords, base + HEADER_SIZE, stored);
+
+        mTail++;
+        return wasEmpty;
+    }
+
+    /**
+     * Removes and returns every pending record, packed back to back.
+     */
+    synchronized byte[] drain() {
+        int size = 0;
+        for (long record = mHead; record < mTail; record++) {
+            int base = (int) (record % mSlots) * mSlotSize;
+            size += HEADER_SIZE + (mBuffer.getShort(base + 10) & 0xFFFF);
+        }
+
+        byte[] out = new byte[size];
+        int position = 0;
+        for (long record = mHead; record < mTail; record++) {
+            int base = (int) (record % mSlots) * mSlotSize;
+            int length = HEADER_SIZE + (mBuffer.getShort(base + 10) & 0xFFFF);
+            System.arraycopy(mRecords, base, out, position, length);
+            position += length;
+        }
+
+        mHead = mTail;
+        return out;
+    }
+
+    synchronized int pending() {
+        return (int) (mTail - mHead);
+    }
+
+    synchronized long overwritten() {
+        return mOverwritten;
+    }
+}
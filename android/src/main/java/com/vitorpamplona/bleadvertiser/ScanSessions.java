@@ -0,0 +1,149 @@
+package com.vitorpamplona.bleavertiser;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The scan sessions sharing the one hardware scan.
+ *
+ * The hardware scan uses the union of the sessions' filters, compiled by {@link ScanFilterSpec},
+ * and the most demanding of their settings; each result is then matched in software against every
+ * session. The session list is copied on write, so the scan workers read it without locks.
+ */
+class ScanSessions {
+
+    // scan() and scanByService() replace this session instead of adding one
+    static final int DEFAULT_SESSION = 0;
+
+    /**
+     * What one session asks the hardware for. Fields keep their ScanSettings.Builder defaults.
+     */
+    static class Settings {
+        int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        long reportDelay = 0;
+        int numberOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT;
+        int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+        boolean longRange;
+        boolean extendedScan;
+
+        /**
+         * The most demanding of each: fastest mode, shortest delay, most matches, all PHYs.
+         */
+        static Settings merge(Session[] sessions) {
+            Settings merged = new Settings();
+            merged.scanMode = ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+            merged.reportDelay = Long.MAX_VALUE;
+            merged.numberOfMatches = ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT;
+            merged.matchMode = ScanSettings.MATCH_MODE_STICKY;
+            for (Session session : sessions) {
+                Settings settings = session.settings;
+                merged.scanMode = Math.max(merged.scanMode, settings.scanMode);
+                merged.reportDelay = Math.min(merged.reportDelay, settings.reportDelay);
+                merged.numberOfMatches = Math.max(merged.numberOfMatches, settings.numberOfMatches);
+                merged.matchMode = Math.min(merged.matchMode, settings.matchMode);
+                merged.longRange |= settings.longRange;
+                merged.extendedScan |= settings.extendedScan;
+            }
+            return merged;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Settings)) return false;
+            Settings other = (Settings) o;
+            return scanMode == other.scanMode && reportDelay == other.reportDelay
+                   && numberOfMatches == other.numberOfMatches && matchMode == other.matchMode
+                   && longRange == other.longRange && extendedScan == other.extendedScan;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { scanMode, reportDelay, numberOfMatches, matchMode, longRange, extendedScan });
+        }
+    }
+
+    static class Session {
+        final int id;
+        final ScanFilterSpec[] filters; // OR-ed, empty matches any
+        final Settings settings;
+
+        Session(int id, List<ScanFilterSpec> filters, Settings settings) {
+            this.id = id;
+            this.filters = filters.toArray(new ScanFilterSpec[0]);
+            this.settings = settings;
+        }
+
+        boolean isUnfiltered() {
+            return filters.length == 0;
+        }
+
+        boolean matches(ScanResult result) {
+            if (isUnfiltered()) return true;
+            for (ScanFilterSpec filter : filters) {
+                if (filter.matches(result)) return true;
+            }
+            return false;
+        }
+    }
+
+    private volatile Session[] mSessions = new Session[0];
+
+    /**
+     * Adds the session, replacing one with the same id.
+     */
+    synchronized void put(Session session) {
+        List<Session> sessions = new ArrayList<>(Arrays.asList(mSessions));
+        for (int i = 0; i < sessions.size(); i++) {
+            if (sessions.get(i).id == session.id) {
+                sessions.set(i, session);
+                mSessions = sessions.toArray(new Session[0]);
+                return;
+            }
+        }
+        sessions.add(session);
+        mSessions = sessions.toArray(new Session[0]);
+    }
+
+    synchronized boolean remove(int id) {
+        List<Session> sessions = new ArrayList<>(Arrays.asList(mSessions));
+        for (int i = 0; i < sessions.size(); i++) {
+            if (sessions.get(i).id == id) {
+                sessions.remove(i);
+                mSessions = sessions.toArray(new Session[0]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        mSessions = new Session[0];
+    }
+
+    Session[] snapshot() {
+        return mSessions;
+    }
+
+    boolean isEmpty() {
+        return mSessions.length == 0;
+    }
+
+    /**
+     * @return the hardware filters covering every session, or null when the scan has to take every
+     *         device.
+     */
+    static Set<ScanFilter> unionFilters(Session[] sessions) {
+        List<ScanFilterSpec> specs = new ArrayList<>();
+        for (Session session : sessions) {
+            if (session.isUnfiltered()) return null;
+            specs.addAll(Arrays.asList(session.filters));
+        }
+        return ScanFilterSpec.compile(specs);
+    }
+}
@@ -0,0 +1,52 @@
+package com.vitorpamplona.bleavertiser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class AdvertiseDataLayoutTest {
+
+    private static final UUID UUID_16 = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_32 = UUID.fromString("1234180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_128 = UUID.fromString("fa0b1234-5678-4abc-9def-0123456789ab");
+
+    @Test
+    public void sendsBaseUuidsInShortForms() {
+        assertEquals(2, AdvertiseDataLayout.uuidLength(UUID_16));
+        assertEquals(4, AdvertiseDataLayout.uuidLength(UUID_32));
+        assertEquals(16, AdvertiseDataLayout.uuidLength(UUID_128));
+    }
+
+    @Test
+    public void givesBackWhatTheProbeMeasured() {
+        // The probe reports the payload it got through plus its own layout around it
+        for (int payload = 1; payload <= 23; payload++) {
+            int measured = AdvertisingCapabilityProbe.advertisementLength(payload);
+            assertEquals(payload, AdvertiseDataLayout.maxPayload(measured, AdvertisingCapabilityProbe.TEST_UUID,
+                                                                 false, false, null));
+        }
+        assertEquals(AdvertisingCapabilities.LEGACY_MAX_LENGTH, AdvertisingCapabilityProbe.advertisementLength(23));
+    }
+
+    @Test
+    public void fitsLegacyAdvertisements() {
+        int legacy = AdvertisingCapabilities.LEGACY_MAX_LENGTH;
+        assertEquals(23, AdvertiseDataLayout.maxPayload(legacy, UUID_16, false, false, null));
+        assertEquals(20, AdvertiseDataLayout.maxPayload(legacy, UUID_16, true, false, null));
+        assertEquals(21, AdvertiseDataLayout.maxPayload(legacy, UUID_32, false, false, null));
+        assertEquals(9, AdvertiseDataLayout.maxPayload(legacy, UUID_128, false, false, null));
+        assertEquals(6, AdvertiseDataLayout.maxPayload(legacy, UUID_128, true, false, null));
+        assertEquals(13, AdvertiseDataLayout.maxPayload(legacy, UUID_16, true, true, "ab"));
+    }
+
+    @Test
+    public void capsExtendedPayloadsAtOneStructure() {
+        int extended = AdvertisingCapabilityProbe.advertisementLength(1642);
+        assertEquals(1650, extended);
+        assertEquals(AdvertiseDataLayout.MAX_MANUFACTURER_PAYLOAD,
+                     AdvertiseDataLayout.maxPayload(extended, UUID_128, false, false, null));
+        assertEquals(191 - 4 - 18, AdvertiseDataLayout.maxPayload(191, UUID_128, false, false, null));
+    }
+}
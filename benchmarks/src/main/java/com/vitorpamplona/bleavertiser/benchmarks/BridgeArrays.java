@@ -0,0 +1,49 @@
+package com.vitorpamplona.bleavertiser.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain-Java stand-ins for the React Native bridge arrays, so the conversions in
+ * BLEAdvertiserModule can be measured off-device.
+ *
+ * ReadableNativeArray hands out numbers from an Object[] of boxed doubles, and WritableNativeArray
+ * appends one boxed value per push. The JNI crossing of the real pushInt is not modelled, so these
+ * numbers are a lower bound for the device.
+ */
+final class BridgeArrays {
+
+    private BridgeArrays() {
+    }
+
+    static final class ReadableArray {
+        private final Object[] mValues;
+
+        ReadableArray(byte[] bytes) {
+            mValues = new Object[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+                mValues[i] = (double) (bytes[i] & 0xFF);
+            }
+        }
+
+        int size() {
+            return mValues.length;
+        }
+
+        int getInt(int index) {
+            return ((Double) mValues[index]).intValue();
+        }
+    }
+
+    static final class WritableArray {
+        private final List<Object> mValues = new ArrayList<>();
+
+        void pushInt(int value) {
+            mValues.add((double) value);
+        }
+
+        int size() {
+            return mValues.size();
+        }
+    }
+}
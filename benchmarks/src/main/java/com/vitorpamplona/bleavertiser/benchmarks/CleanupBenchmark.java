@@ -0,0 +1,105 @@
+package com.vitorpamplona.bleavertiser.benchmarks;
+
+import com.vitorpamplona.bleavertiser.codec.FragmentDecoder;
+import com.vitorpamplona.bleavertiser.codec.FragmentEncoder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The periodic sweep for incomplete messages (cleanupOldPackets) over full reassembly tables.
+ *
+ * expireNone measures the scan alone over a table of fresh messages. expireAll drops a table of
+ * timed-out messages, refilled before each call outside the measurement. insert measures the
+ * refill itself: new messages offered to a table emptied before each call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CleanupBenchmark {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    @State(Scope.Thread)
+    public static class Table {
+
+        @Param({ "256", "4096" })
+        int inFlight;
+
+        FragmentDecoder decoder;
+        byte[] firstFragment;
+        long now;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            decoder = new FragmentDecoder(inFlight, 16, 0);
+            FragmentEncoder encoder = new FragmentEncoder(new byte[200], 1, 31);
+            firstFragment = encoder.next();
+            fill();
+        }
+
+        /**
+         * Starts one message per sender, from senders the table does not hold: every offer is an insert.
+         */
+        void fill() {
+            now += TIMEOUT_MS * 2;
+            for (int sender = 0; sender < inFlight; sender++) {
+                decoder.offer(0x112233000000L + sender, firstFragment, now);
+            }
+        }
+
+        void empty() {
+            decoder.expire(now + TIMEOUT_MS + 1, TIMEOUT_MS);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FullTable extends Table {
+
+        @Setup(Level.Invocation)
+        public void refill() {
+            if (decoder.inFlight() == 0) {
+                fill();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EmptyTable extends Table {
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            empty();
+        }
+    }
+
+    @Benchmark
+    public int expireNone(Table table) {
+        return table.decoder.expire(table.now, TIMEOUT_MS);
+    }
+
+    @Benchmark
+    public int expireAll(FullTable table) {
+        return table.decoder.expire(table.now + TIMEOUT_MS + 1, TIMEOUT_MS);
+    }
+
+    @Benchmark
+    public int insert(EmptyTable table) {
+        table.fill();
+        return table.decoder.inFlight();
+    }
+}
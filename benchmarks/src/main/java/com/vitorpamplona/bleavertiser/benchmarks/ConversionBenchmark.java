@@ -0,0 +1,74 @@
+package com.vitorpamplona.bleavertiser.benchmarks;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The payload conversions between JS and byte[] done for every broadcast and every scan event,
+ * in the same shape as BLEAdvertiserModule.toByteArray. java.util.Base64 stands in for
+ * android.util.Base64 in the base64 variants.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversionBenchmark {
+
+    @Param({ "31", "251", "1650" })
+    int payloadLength;
+
+    private byte[] mBytes;
+    private BridgeArrays.ReadableArray mReadable;
+    private String mBase64;
+
+    @Setup
+    public void setup() {
+        mBytes = new byte[payloadLength];
+        new Random(payloadLength).nextBytes(mBytes);
+        mReadable = new BridgeArrays.ReadableArray(mBytes);
+        mBase64 = Base64.getEncoder().encodeToString(mBytes);
+    }
+
+    @Benchmark
+    public byte[] readableArrayToBytes() {
+        byte[] temp = new byte[mReadable.size()];
+        for (int i = 0; i < mReadable.size(); i++) {
+            temp[i] = (byte) mReadable.getInt(i);
+        }
+        return temp;
+    }
+
+    @Benchmark
+    public BridgeArrays.WritableArray bytesToWritableArray() {
+        BridgeArrays.WritableArray array = new BridgeArrays.WritableArray();
+        for (byte data : mBytes) {
+            array.pushInt(data & 0xFF);
+        }
+        return array;
+    }
+
+    @Benchmark
+    public byte[] base64ToBytes() {
+        return Base64.getDecoder().decode(mBase64);
+    }
+
+    @Benchmark
+    public String bytesToBase64() {
+        return Base64.getEncoder().encodeToString(mBytes);
+    }
+}
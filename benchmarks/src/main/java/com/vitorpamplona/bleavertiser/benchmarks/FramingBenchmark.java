@@ -0,0 +1,66 @@
+package com.vitorpamplona.bleavertiser.benchmarks;
+
+import com.vitorpamplona.bleavertiser.codec.FragmentEncoder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splitting a message into fragments, as done once per multi-packet broadcast before the
+ * rotation starts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+
+    @Param({ "100", "1000", "7000" })
+    int messageLength;
+
+    @Param({ "31", "251" })
+    int fragmentLength;
+
+    private byte[] mMessage;
+    private byte[] mBuffer;
+
+    @Setup
+    public void setup() {
+        mMessage = new byte[messageLength];
+        new Random(messageLength).nextBytes(mMessage);
+        mBuffer = new byte[fragmentLength];
+    }
+
+    @Benchmark
+    public void frameIntoNewArrays(Blackhole blackhole) {
+        FragmentEncoder encoder = new FragmentEncoder(mMessage, 42, fragmentLength);
+        while (encoder.hasNext()) {
+            blackhole.consume(encoder.next());
+        }
+    }
+
+    @Benchmark
+    public int frameIntoBuffer() {
+        FragmentEncoder encoder = new FragmentEncoder(mMessage, 42, fragmentLength);
+        int written = 0;
+        while (encoder.hasNext()) {
+            written += encoder.next(mBuffer, 0);
+        }
+        return written;
+    }
+}
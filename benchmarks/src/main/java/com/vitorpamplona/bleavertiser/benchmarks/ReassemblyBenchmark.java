@@ -0,0 +1,111 @@
+package com.vitorpamplona.bleavertiser.benchmarks;
+
+import com.vitorpamplona.bleavertiser.codec.FragmentDecoder;
+import com.vitorpamplona.bleavertiser.codec.FragmentEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Feeding advertisements to the decoder the way a scan worker does.
+ *
+ * One operation is one complete workload: every fragment of one message (or of one message per
+ * sender) in the workload's order. The clock moves past the re-emit interval between operations,
+ * so every operation reassembles its messages again.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReassemblyBenchmark {
+
+    private static final long REEMIT_MS = 5000;
+
+    /**
+     * inOrder: fragments 0..n-1. outOfOrder: a fixed shuffle. duplicateHeavy: the sender's
+     * rotation heard four times over. manySenders: 256 devices, their fragments interleaved.
+     */
+    @Param({ "inOrder", "outOfOrder", "duplicateHeavy", "manySenders" })
+    String workload;
+
+    @Param({ "200", "1600" })
+    int messageLength;
+
+    private FragmentDecoder mDecoder;
+    private long[] mAddresses;
+    private byte[][] mFragments;
+    private long mNow;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        int senders = "manySenders".equals(workload) ? 256 : 1;
+        mDecoder = new FragmentDecoder(senders * 2, senders * 4, REEMIT_MS);
+
+        List<List<byte[]>> perSender = new ArrayList<>();
+        for (int sender = 0; sender < senders; sender++) {
+            byte[] message = new byte[messageLength];
+            random.nextBytes(message);
+            List<byte[]> fragments = new ArrayList<>();
+            FragmentEncoder encoder = new FragmentEncoder(message, sender, 31);
+            while (encoder.hasNext()) {
+                fragments.add(encoder.next());
+            }
+            perSender.add(fragments);
+        }
+
+        List<Long> addresses = new ArrayList<>();
+        List<byte[]> order = new ArrayList<>();
+        int fragmentCount = perSender.get(0).size();
+
+        if ("outOfOrder".equals(workload)) {
+            Collections.shuffle(perSender.get(0), random);
+        }
+        int passes = "duplicateHeavy".equals(workload) ? 4 : 1;
+
+        for (int pass = 0; pass < passes; pass++) {
+            for (int index = 0; index < fragmentCount; index++) {
+                for (int sender = 0; sender < senders; sender++) {
+                    addresses.add(0x112233000000L + sender);
+                    order.add(perSender.get(sender).get(index));
+                }
+            }
+        }
+
+        mAddresses = new long[addresses.size()];
+        mFragments = new byte[order.size()][];
+        for (int i = 0; i < mFragments.length; i++) {
+            mAddresses[i] = addresses.get(i);
+            mFragments[i] = order.get(i);
+        }
+    }
+
+    @Benchmark
+    public int decode() {
+        mNow += REEMIT_MS * 2;
+        int completed = 0;
+        for (int i = 0; i < mFragments.length; i++) {
+            if (mDecoder.offer(mAddresses[i], mFragments[i], mNow) == FragmentDecoder.COMPLETE) {
+                completed += mDecoder.takeMessage().length;
+            }
+        }
+        return completed;
+    }
+}
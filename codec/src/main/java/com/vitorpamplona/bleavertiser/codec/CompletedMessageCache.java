@@ -0,0 +1,196 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+import java.util.Arrays;
+
+/**
+ * Remembers recently delivered multi-packet messages so the sender's endless rotation does not
+ * make the scanner reassemble and emit the same message every cycle.
+ *
+ * Entries are (device + message id key, fragment count, length, content hash, delivery time) in a
+ * fixed 4-way set-associative table; a full set replaces its least recently delivered entry.
+ * Fragments whose key and fragment count match a delivery younger than the re-emit interval are
+ * dropped before reassembly. For fleets larger than the table, an optional two-generation Bloom
+ * filter keeps suppressing messages the table had to evict, at the cost of rare false positives.
+ */
+class CompletedMessageCache {
+
+    private static final int WAYS = 4;
+    private static final int BLOOM_BITS = 1 << 16;   // 8 KB per generation
+    private static final int BLOOM_HASHES = 3;
+
+    private final long[] mKeys;
+    private final int[] mTotals;
+    private final int[] mLengths;
+    private final int[] mHashes;
+    private final long[] mDeliveredAt;
+    private final int mSetMask;
+
+    private long mReemitIntervalMs;
+
+    private long[] mBloomCurrent;
+    private long[] mBloomPrevious;
+    private long mBloomRotatedAt;
+
+    /**
+     * @param capacity number of messages remembered, rounded up to a multiple of 4 sets.
+     */
+    CompletedMessageCache(int capacity, long reemitIntervalMs) {
+        int sets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS) * 2 - 1);
+        mKeys = new long[sets * WAYS];
+        mTotals = new int[sets * WAYS];
+        mLengths = new int[sets * WAYS];
+        mHashes = new int[sets * WAYS];
+        mDeliveredAt = new long[sets * WAYS];
+        mSetMask = sets - 1;
+        mReemitIntervalMs = reemitIntervalMs;
+    }
+
+    /**
+     * @param reemitIntervalMs how long a delivered message is suppressed; 0 disables suppression.
+     */
+    synchronized void configure(long reemitIntervalMs, boolean useBloomFilter) {
+        mReemitIntervalMs = reemitIntervalMs;
+        if (useBloomFilter && mBloomCurrent == null) {
+            mBloomCurrent = new long[BLOOM_BITS / 64];
+            mBloomPrevious = new long[BLOOM_BITS / 64];
+        } else if (!useBloomFilter) {
+            mBloomCurrent = null;
+            mBloomPrevious = null;
+        }
+    }
+
+    synchronized void clear() {
+        Arrays.fill(mTotals, 0);
+        if (mBloomCurrent != null) {
+            Arrays.fill(mBloomCurrent, 0L);
+            Arrays.fill(mBloomPrevious, 0L);
+        }
+    }
+
+    /**
+     * Header-time check: true when a fragment belongs to a message delivered within the re-emit interval.
+     */
+    synchronized boolean isDelivered(long key, int totalFragments, long now) {
+        if (mReemitIntervalMs <= 0) return false;
+
+        int slot = find(key, totalFragments);
+        if (slot >= 0) {
+            return now - mDeliveredAt[slot] < mReemitIntervalMs;
+        }
+
+        if (mBloomCurrent != null) {
+            rotateBloom(now);
+            long item = bloomItem(key, totalFragments);
+            return bloomContains(mBloomCurrent, item) || bloomContains(mBloomPrevious, item);
+        }
+        return false;
+    }
+
+    /**
+     * Records a reassembled message.
+     *
+     * @return false when the same content was already delivered within the re-emit interval,
+     *         in which case it should not be emitted again.
+     */
+    synchronized boolean recordDelivered(long key, int totalFragments, byte[] message, long now) {
+        if (mReemitIntervalMs <= 0) return true;
+
+        int hash = hash(message);
+        int slot = find(key, totalFragments);
+        if (slot >= 0 && mLengths[slot] == message.length && mHashes[slot] == hash
+                && now - mDeliveredAt[slot] < mReemitIntervalMs) {
+            return false;
+        }
+
+        if (slot < 0) {
+            slot = victim(key);
+        }
+        mKeys[slot] = key;
+        mTotals[slot] = totalFragments;
+        mLengths[slot] = message.length;
+        mHashes[slot] = hash;
+        mDeliveredAt[slot] = now;
+
+        if (mBloomCurrent != null) {
+            rotateBloom(now);
+            bloomAdd(mBloomCurrent, bloomItem(key, totalFragments));
+        }
+        return true;
+    }
+
+    private int find(long key, int totalFragments) {
+        int base = (mix(key) & mSetMask) * WAYS;
+        for (int way = 0; way < WAYS; way++) {
+            int slot = base + way;
+            // A fragment count of 0 marks an empty way
+            if (mTotals[slot] == totalFragments && mKeys[slot] == key) return slot;
+        }
+        return -1;
+    }
+
+    private int victim(long key) {
+        int base = (mix(key) & mSetMask) * WAYS;
+        int oldest = base;
+        for (int way = 0; way < WAYS; way++) {
+            int slot = base + way;
+            if (mTotals[slot] == 0 || mKeys[slot] == key) return slot;
+            if (mDeliveredAt[slot] < mDeliveredAt[oldest]) oldest = slot;
+        }
+        return oldest;
+    }
+
+    private void rotateBloom(long now) {
+        // Each generation covers one re-emit interval, so membership ages out after one to two intervals
+        if (now - mBloomRotatedAt < mReemitIntervalMs) return;
+
+        long[] cleared = mBloomPrevious;
+        Arrays.fill(cleared, 0L);
+        mBloomPrevious = mBloomCurrent;
+        mBloomCurrent = cleared;
+        mBloomRotatedAt = now;
+    }
+
+    private static long bloomItem(long key, int totalFragments) {
+        return key * 31 + totalFragments;
+    }
+
+    private static void bloomAdd(long[] bits, long item) {
+        long h = mix64(item);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (int) (h >>> (i * 16)) & (BLOOM_BITS - 1);
+            bits[bit >>> 6] |= 1L << (bit & 63);
+        }
+    }
+
+    private static boolean bloomContains(long[] bits, long item) {
+        long h = mix64(item);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (int) (h >>> (i * 16)) & (BLOOM_BITS - 1);
+            if ((bits[bit >>> 6] & (1L << (bit & 63))) == 0) return false;
+        }
+        return true;
+    }
+
+    private static long mix64(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int mix(long key) {
+        return (int) mix64(key);
+    }
+
+    // FNV-1a
+    private static int hash(byte[] message) {
+        int hash = 0x811c9dc5;
+        for (byte b : message) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,143 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+/**
+ * Systematic Cauchy Reed-Solomon erasure code over GF(256).
+ *
+ * A message of k data fragments, each zero-padded to {@code stride} bytes, gets m parity
+ * fragments of {@code stride} bytes; parity row j is sum_i C(j, i) * data_i with
+ * C(j, i) = 1 / ((255 - j) xor i). Every square submatrix of a Cauchy matrix is invertible, so
+ * any k of the k + m fragments give the message back. Rows do not depend on k or m, so a receiver
+ * needs only the row number of each parity fragment. Requires k + m <= 256.
+ */
+final class ErasureCode {
+
+    private static final int POLYNOMIAL = 0x11D;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private ErasureCode() {
+    }
+
+    static int multiply(int a, int b) {
+        if (a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]] & 0xFF;
+    }
+
+    static int inverse(int a) {
+        return EXP[255 - LOG[a]] & 0xFF;
+    }
+
+    static int coefficient(int parityRow, int dataIndex) {
+        return inverse((255 - parityRow) ^ dataIndex);
+    }
+
+    /**
+     * target[targetOffset..] ^= factor * source[sourceOffset..], over {@code length} bytes.
+     */
+    private static void multiplyAdd(byte[] target, int targetOffset, byte[] source, int sourceOffset, int length,
+                                    int factor) {
+        if (factor == 0) return;
+        int logFactor = LOG[factor];
+        for (int i = 0; i < length; i++) {
+            int value = source[sourceOffset + i] & 0xFF;
+            if (value != 0) {
+                target[targetOffset + i] ^= EXP[LOG[value] + logFactor];
+            }
+        }
+    }
+
+    /**
+     * Computes parity rows 0..parityCount-1 of the message's fragments.
+     *
+     * @return parityCount rows of stride bytes, back to back.
+     */
+    static byte[] encode(byte[] message, int dataFragments, int stride, int parityCount) {
+        byte[] parity = new byte[parityCount * stride];
+        for (int row = 0; row < parityCount; row++) {
+            for (int i = 0; i < dataFragments; i++) {
+                int start = i * stride;
+                int length = Math.max(0, Math.min(stride, message.length - start));
+                multiplyAdd(parity, row * stride, message, start, length, coefficient(row, i));
+            }
+        }
+        return parity;
+    }
+
+    /**
+     * Rebuilds the missing data fragments in place.
+     *
+     * @param buffer     dataFragments * stride bytes, present fragments zero-padded to stride.
+     * @param missing    indices of the missing data fragments, {@code missingCount} of them.
+     * @param parityRows row numbers of the parity fragments in {@code parity}, at least
+     *                   {@code missingCount} of them.
+     */
+    static void recover(byte[] buffer, int dataFragments, int stride, int[] missing, int missingCount,
+                        int[] parityRows, byte[] parity) {
+        int e = missingCount;
+
+        // Syndromes: each parity row minus what the fragments we have contribute to it
+        byte[] syndromes = new byte[e * stride];
+        System.arraycopy(parity, 0, syndromes, 0, e * stride);
+        for (int r = 0; r < e; r++) {
+            int next = 0;
+            for (int i = 0; i < dataFragments; i++) {
+                if (next < e && missing[next] == i) {
+                    next++;
+                    continue;
+                }
+                multiplyAdd(syndromes, r * stride, buffer, i * stride, stride, coefficient(parityRows[r], i));
+            }
+        }
+
+        // Invert the e x e Cauchy submatrix of the used rows and the missing columns
+        int[][] matrix = new int[e][2 * e];
+        for (int r = 0; r < e; r++) {
+            for (int c = 0; c < e; c++) {
+                matrix[r][c] = coefficient(parityRows[r], missing[c]);
+            }
+            matrix[r][e + r] = 1;
+        }
+        for (int col = 0; col < e; col++) {
+            int pivot = col;
+            while (matrix[pivot][col] == 0) pivot++;
+            int[] swap = matrix[pivot];
+            matrix[pivot] = matrix[col];
+            matrix[col] = swap;
+
+            int scale = inverse(matrix[col][col]);
+            for (int c = 0; c < 2 * e; c++) {
+                matrix[col][c] = multiply(matrix[col][c], scale);
+            }
+            for (int r = 0; r < e; r++) {
+                int factor = matrix[r][col];
+                if (r == col || factor == 0) continue;
+                for (int c = 0; c < 2 * e; c++) {
+                    matrix[r][c] ^= multiply(factor, matrix[col][c]);
+                }
+            }
+        }
+
+        for (int c = 0; c < e; c++) {
+            int offset = missing[c] * stride;
+            for (int i = 0; i < stride; i++) {
+                buffer[offset + i] = 0;
+            }
+            for (int r = 0; r < e; r++) {
+                multiplyAdd(buffer, offset, syndromes, r * stride, stride, matrix[c][e + r]);
+            }
+        }
+    }
+}
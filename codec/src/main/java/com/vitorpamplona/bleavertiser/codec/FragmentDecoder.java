@@ -0,0 +1,278 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reassembles multi-packet messages from manufacturer data, one advertisement at a time.
+ *
+ * Version 1 fragments of {@link FragmentEncoder} are always read. Version 2 fragments are read once
+ * {@link #setHeaderVersion} allows them: they are told apart by a leading zero byte, which no
+ * version 1 fragment count can be, but which a plain advertisement may well start with, so a
+ * receiver has to expect version 2 senders. Version 2 messages are checked against their CRC-32
+ * and dropped as {@link #CORRUPTED} when it does not match.
+ *
+ * Each call to {@link #offer} takes the sending device's address, the advertisement's bytes and
+ * the time it was heard, and says what became of it. Fragments of a message that was delivered
+ * recently are dropped before reassembly, so a sender's endless rotation yields the message once
+ * per re-emit interval.
+ *
+ * Parity fragments (see {@link FragmentEncoder}) are recognized by an index at or past the
+ * fragment count and a message length that fits it; a message then completes from any k of its
+ * fragments.
+ *
+ * Given a {@link MessageCompression}, version 2 messages flagged
+ * {@link FragmentEncoder#FLAG_COMPRESSED} are inflated once reassembled and their CRC-32 matches;
+ * one that does not inflate, for want of its dictionary, is dropped as {@link #NOT_INFLATED}
+ * rather than passed on as deflate bytes. Version 1 messages are never inflated.
+ *
+ * A decoder is not meant to be shared between threads; give each consumer its own.
+ */
+public final class FragmentDecoder {
+
+    /** Not a fragment: the bytes are a message on their own. */
+    public static final int SINGLE = 0;
+    /** A new fragment of a message that is not complete yet. */
+    public static final int INCOMPLETE = 1;
+    /** The fragment completed its message; read it with {@link #takeMessage()}. */
+    public static final int COMPLETE = 2;
+    /** A fragment already held for a message in flight. */
+    public static final int DUPLICATE = 3;
+    /** A fragment (or the completion) of a message delivered within the re-emit interval. */
+    public static final int ALREADY_DELIVERED = 4;
+    /** A fragment that cannot belong to a well-formed message. */
+    public static final int REJECTED = 5;
+    /** The fragment completed a version 2 message whose CRC-32 did not match; it is dropped. */
+    public static final int CORRUPTED = 6;
+    /** The fragment completed a compressed message that would not inflate; it is dropped. */
+    public static final int NOT_INFLATED = 7;
+
+    /** Version 2 messages that would need a larger reassembly buffer are rejected. */
+    public static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+    private final ReassemblyTable mReassembly;
+    private final CompletedMessageCache mDelivered;
+    private MessageCompression mCompression;
+    private int mHeaderVersion = FragmentEncoder.VERSION_1;
+
+    private byte[] mMessage;
+    private int mMessageFragments;
+    private int mRecoveredFragments;
+    private boolean mDecompressed;
+
+    /**
+     * @param reassemblyCapacity messages reassembled at once; the oldest is dropped beyond that.
+     * @param deliveredCapacity  delivered messages remembered for suppression.
+     * @param reemitIntervalMs   how long a delivered message is suppressed; 0 disables suppression.
+     */
+    public FragmentDecoder(int reassemblyCapacity, int deliveredCapacity, long reemitIntervalMs) {
+        mReassembly = new ReassemblyTable(reassemblyCapacity);
+        mDelivered = new CompletedMessageCache(deliveredCapacity, reemitIntervalMs);
+    }
+
+    /**
+     * Changes the re-emit interval and forgets every delivered message.
+     *
+     * @param bloomFilter also suppress messages the delivered table had to evict, at the cost of
+     *                    rarely dropping a new message that reuses a recent id.
+     */
+    public void setReemitInterval(long reemitIntervalMs, boolean bloomFilter) {
+        mDelivered.configure(reemitIntervalMs, bloomFilter);
+        mDelivered.clear();
+    }
+
+    /**
+     * Inflates compressed messages with {@code compression}'s dictionaries; null leaves them as
+     * they arrived.
+     */
+    public void setCompression(MessageCompression compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Highest header version read: {@link FragmentEncoder#VERSION_1}, the default, takes data
+     * starting with a zero byte as a single advertisement; {@link FragmentEncoder#VERSION_2} reads
+     * it as a version 2 fragment.
+     */
+    public void setHeaderVersion(int headerVersion) {
+        mHeaderVersion = headerVersion;
+    }
+
+    public int offer(String address, byte[] data, long timestamp) {
+        return offer(parseAddress(address), data, timestamp);
+    }
+
+    /**
+     * @param address 48-bit device address, see {@link #parseAddress(String)}.
+     * @return one of {@link #SINGLE}, {@link #INCOMPLETE}, {@link #COMPLETE}, {@link #DUPLICATE},
+     *         {@link #ALREADY_DELIVERED}, {@link #REJECTED} or {@link #CORRUPTED}.
+     */
+    public int offer(long address, byte[] data, long timestamp) {
+        if (mHeaderVersion >= FragmentEncoder.VERSION_2 && data.length >= FragmentEncoder.HEADER_SIZE_V2
+            && data[0] == 0 && (data[1] & 0xF0) == FragmentEncoder.VERSION_2 << 4) {
+            int flags = data[1] & 0x0F;
+            int messageId = (data[2] & 0xFF) | (data[3] & 0xFF) << 8;
+            int totalFragments = (data[4] & 0xFF) | (data[5] & 0xFF) << 8;
+            int index = (data[6] & 0xFF) | (data[7] & 0xFF) << 8;
+            if (totalFragments == 0) {
+                return SINGLE;
+            }
+            return offer(ReassemblyTable.key(address, messageId), totalFragments, index, data,
+                         FragmentEncoder.HEADER_SIZE_V2, (flags & FragmentEncoder.FLAG_COMPRESSED) != 0, true,
+                         timestamp);
+        }
+
+        if (data.length < FragmentEncoder.HEADER_SIZE) {
+            return SINGLE;
+        }
+
+        int totalFragments = data[0] & 0xFF;
+        int index = data[1] & 0xFF;
+        if (totalFragments <= 1) {
+            return SINGLE;
+        }
+
+        long key = ReassemblyTable.key(address, data[2] & 0xFF);
+        return offer(key, totalFragments, index, data, FragmentEncoder.HEADER_SIZE, false, false, timestamp);
+    }
+
+    private int offer(long key, int totalFragments, int index, byte[] data, int headerSize, boolean compressed,
+                      boolean checksummed, long timestamp) {
+        if (mDelivered.isDelivered(key, totalFragments, timestamp)) {
+            return ALREADY_DELIVERED;
+        }
+
+        int status;
+        if (totalFragments == 1 && index == 0) {
+            // Version 2 frames every message, even one that fits a fragment
+            return deliver(key, 1, Arrays.copyOfRange(data, headerSize, data.length), compressed, checksummed, 0,
+                           timestamp);
+        } else if (index >= totalFragments) {
+            int parityLength = data.length - headerSize - FragmentEncoder.PARITY_HEADER_SIZE;
+            int messageLength = parityLength < 1 ? 0
+                : (data[headerSize] & 0xFF) | (data[headerSize + 1] & 0xFF) << 8;
+            if (messageLength <= (totalFragments - 1) * parityLength || messageLength > totalFragments * parityLength) {
+                return checksummed ? REJECTED : SINGLE;
+            }
+            status = mReassembly.offerParity(key, totalFragments, index - totalFragments, data,
+                                             headerSize + FragmentEncoder.PARITY_HEADER_SIZE,
+                                             parityLength, messageLength, timestamp);
+        } else {
+            if ((long) totalFragments * (data.length - headerSize) > MAX_MESSAGE_LENGTH) {
+                return REJECTED;
+            }
+            status = mReassembly.offer(key, totalFragments, index, data, headerSize,
+                                       data.length - headerSize, timestamp);
+        }
+
+        switch (status) {
+            case ReassemblyTable.COMPLETE:
+                return deliver(key, totalFragments, mReassembly.takeCompleted(), compressed, checksummed,
+                               mReassembly.recoveredFragments(), timestamp);
+            case ReassemblyTable.DUPLICATE:
+                return DUPLICATE;
+            case ReassemblyTable.REJECTED:
+                return REJECTED;
+            default:
+                return INCOMPLETE;
+        }
+    }
+
+    private int deliver(long key, int totalFragments, byte[] message, boolean compressed, boolean checksummed,
+                        int recoveredFragments, long timestamp) {
+        if (checksummed) {
+            message = stripCrc(message);
+            if (message == null) {
+                return CORRUPTED;
+            }
+        }
+        if (!mDelivered.recordDelivered(key, totalFragments, message, timestamp)) {
+            return ALREADY_DELIVERED;
+        }
+
+        mDecompressed = compressed;
+        if (compressed) {
+            message = mCompression != null ? mCompression.decompress(message, 0, message.length) : null;
+            if (message == null) {
+                return NOT_INFLATED;
+            }
+        }
+        mMessage = message;
+        mMessageFragments = totalFragments;
+        mRecoveredFragments = recoveredFragments;
+        return COMPLETE;
+    }
+
+    /**
+     * @return the message without its trailing CRC-32, or null when the CRC does not match.
+     */
+    private static byte[] stripCrc(byte[] message) {
+        int length = message.length - FragmentEncoder.CRC_SIZE;
+        if (length < 0) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(message, 0, length);
+        long expected = crc.getValue();
+        long actual = 0;
+        for (int i = 0; i < FragmentEncoder.CRC_SIZE; i++) {
+            actual |= (long) (message[length + i] & 0xFF) << (8 * i);
+        }
+        return actual == expected ? Arrays.copyOf(message, length) : null;
+    }
+
+    /**
+     * The message completed by the last {@link #offer} that returned {@link #COMPLETE}.
+     */
+    public byte[] takeMessage() {
+        byte[] message = mMessage;
+        mMessage = null;
+        return message;
+    }
+
+    /**
+     * Number of fragments the last completed message was sent in.
+     */
+    public int getMessageFragmentCount() {
+        return mMessageFragments;
+    }
+
+    /**
+     * Whether the last completed message was sent compressed and has been inflated.
+     */
+    public boolean wasDecompressed() {
+        return mDecompressed;
+    }
+
+    /**
+     * Number of fragments of the last completed message that were rebuilt from parity rather
+     * than received; 0 when every data fragment arrived.
+     */
+    public int getRecoveredFragmentCount() {
+        return mRecoveredFragments;
+    }
+
+    /**
+     * Drops messages that have been incomplete for longer than {@code timeoutMs}.
+     *
+     * @return the number of messages dropped.
+     */
+    public int expire(long now, long timeoutMs) {
+        return mReassembly.expire(now, timeoutMs);
+    }
+
+    /**
+     * Number of messages being reassembled.
+     */
+    public int inFlight() {
+        return mReassembly.size();
+    }
+
+    /**
+     * Parses "AA:BB:CC:DD:EE:FF" into its 48-bit value without allocating.
+     */
+    public static long parseAddress(String address) {
+        return ReassemblyTable.parseAddress(address);
+    }
+}
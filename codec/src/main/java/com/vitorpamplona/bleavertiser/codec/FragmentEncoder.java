@@ -0,0 +1,269 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Splits a message into multi-packet fragments, one at a time.
+ *
+ * Version 1 fragments are {@code [total][index][id][data...]}: a 3-byte header followed by the
+ * next {@code maxFragmentLength - 3} bytes of the message (the last fragment may be shorter).
+ * Fragments are produced on demand, either as new arrays or written into a caller's buffer.
+ *
+ * Version 2 fragments start with a zero byte, which no version 1 fragment count can be, then the
+ * version and flags nibbles and little-endian 16-bit id, fragment count and index:
+ * {@code [0][version << 4 | flags][id][count][index][data...]}, 8 bytes of header. The message
+ * is sent with its CRC-32 appended, so a receiver can drop one that mixed fragments of two
+ * messages instead of delivering it.
+ *
+ * With parity, the k data fragments are followed by m parity fragments
+ * {@code [header with index k + j][length lo][length hi][parity...]} of an {@link ErasureCode},
+ * so a receiver can rebuild the message from any k of them. Data fragments keep the plain layout
+ * and give up {@link #PARITY_HEADER_SIZE} bytes each so every fragment fits the same length;
+ * receivers that predate parity reassemble the data fragments as usual and see parity fragments
+ * as single advertisements, since their index is not below the fragment count. Parity needs
+ * k + m to stay within 255 in either version.
+ *
+ * Messages compressed with {@link MessageCompression} need version 2, which flags them with
+ * {@link #FLAG_COMPRESSED}; a version 1 id has no bit to spare, since senders that predate
+ * compression use all 8. A compressed message is framed even when it fits one fragment, so the
+ * flag always reaches the receiver.
+ */
+public final class FragmentEncoder {
+
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+
+    public static final int HEADER_SIZE = 3;
+    public static final int HEADER_SIZE_V2 = 8;
+    public static final int MAX_FRAGMENTS = 255;
+    public static final int MAX_FRAGMENTS_V2 = 0xFFFF;
+    /** Message length carried by each parity fragment after the header. */
+    public static final int PARITY_HEADER_SIZE = 2;
+    /** CRC-32 appended to version 2 messages. */
+    public static final int CRC_SIZE = 4;
+    /** Version 2 flag marking a compressed message. */
+    public static final int FLAG_COMPRESSED = 0x1;
+
+    private final byte[] mMessage;
+    private final int mVersion;
+    private final int mHeaderSize;
+    private final int mFlags;
+    private final int mDataPerFragment;
+    private final int mFragmentCount;
+    private final int mParityCount;
+    private final byte[] mParity;
+    private final int mMessageId;
+    private int mNext;
+
+    /**
+     * @param maxFragmentLength bytes available to one fragment, header included.
+     * @throws IllegalArgumentException when a fragment has no room for data, or the message
+     *         needs more than {@link #MAX_FRAGMENTS} fragments.
+     */
+    public FragmentEncoder(byte[] message, int messageId, int maxFragmentLength) {
+        this(message, messageId, maxFragmentLength, 0);
+    }
+
+    /**
+     * @param redundancy parity fragments per data fragment, rounded up to at least one parity
+     *                   fragment; 0 sends no parity. Messages that fit one fragment get no parity.
+     * @throws IllegalArgumentException when a fragment has no room for data, or the message and
+     *         its parity need more than {@link #MAX_FRAGMENTS} fragments.
+     */
+    public FragmentEncoder(byte[] message, int messageId, int maxFragmentLength, double redundancy) {
+        this(message, messageId, maxFragmentLength, redundancy, VERSION_1, false);
+    }
+
+    /**
+     * @param messageId  8 bits of it in version 1, 16 in version 2.
+     * @param compressed whether {@code message} came out of {@link MessageCompression}; version 2 only.
+     * @throws IllegalArgumentException for an unknown version, a compressed version 1 message,
+     *         when a fragment has no room for data, or the message needs more fragments than the
+     *         version can count.
+     */
+    public FragmentEncoder(byte[] message, int messageId, int maxFragmentLength, double redundancy,
+                           int headerVersion, boolean compressed) {
+        if (redundancy < 0 || Double.isNaN(redundancy)) {
+            throw new IllegalArgumentException("Redundancy must be positive, got " + redundancy);
+        }
+        if (headerVersion != VERSION_1 && headerVersion != VERSION_2) {
+            throw new IllegalArgumentException("Unknown header version " + headerVersion);
+        }
+        if (compressed && headerVersion != VERSION_2) {
+            throw new IllegalArgumentException("Compressed messages need header version " + VERSION_2);
+        }
+
+        mVersion = headerVersion;
+        if (headerVersion == VERSION_2) {
+            mHeaderSize = HEADER_SIZE_V2;
+            mFlags = compressed ? FLAG_COMPRESSED : 0;
+            mMessageId = messageId & 0xFFFF;
+            mMessage = withCrc(message);
+        } else {
+            mHeaderSize = HEADER_SIZE;
+            mFlags = 0;
+            mMessageId = messageId & 0xFF;
+            mMessage = message;
+        }
+        int maxFragments = headerVersion == VERSION_2 ? MAX_FRAGMENTS_V2 : MAX_FRAGMENTS;
+
+        int dataPerFragment = maxFragmentLength - mHeaderSize;
+        if (dataPerFragment > 0 && redundancy > 0 && mMessage.length > dataPerFragment) {
+            dataPerFragment -= PARITY_HEADER_SIZE;
+        }
+        if (dataPerFragment <= 0) {
+            throw new IllegalArgumentException("Fragments of " + maxFragmentLength + " bytes have no room for data");
+        }
+
+        mDataPerFragment = dataPerFragment;
+        mFragmentCount = fragmentCount(mMessage.length, dataPerFragment);
+        mParityCount = parityCount(mFragmentCount, redundancy);
+
+        if (mFragmentCount > maxFragments) {
+            throw new IllegalArgumentException("Payload requires more than " + maxFragments + " packets");
+        }
+        if (mParityCount > 0 && (mFragmentCount + mParityCount > MAX_FRAGMENTS || mMessage.length > 0xFFFF)) {
+            throw new IllegalArgumentException("Payload with parity requires more than " + MAX_FRAGMENTS + " packets");
+        }
+
+        mParity = ErasureCode.encode(mMessage, mFragmentCount, mDataPerFragment, mParityCount);
+    }
+
+    private static byte[] withCrc(byte[] message) {
+        CRC32 crc = new CRC32();
+        crc.update(message, 0, message.length);
+        long value = crc.getValue();
+
+        byte[] framed = Arrays.copyOf(message, message.length + CRC_SIZE);
+        for (int i = 0; i < CRC_SIZE; i++) {
+            framed[message.length + i] = (byte) (value >>> (8 * i));
+        }
+        return framed;
+    }
+
+    /**
+     * Number of parity fragments sent for {@code dataFragments} at a redundancy ratio.
+     */
+    public static int parityCount(int dataFragments, double redundancy) {
+        if (redundancy <= 0 || dataFragments <= 1) return 0;
+        return Math.max(1, (int) Math.ceil(dataFragments * redundancy - 1e-9));
+    }
+
+    /**
+     * Number of fragments a message of {@code messageLength} bytes is split into.
+     */
+    public static int fragmentCount(int messageLength, int dataPerFragment) {
+        return Math.max(1, (messageLength + dataPerFragment - 1) / dataPerFragment);
+    }
+
+    /**
+     * Number of data fragments, the k that any k fragments rebuild the message from.
+     */
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    public int getParityCount() {
+        return mParityCount;
+    }
+
+    /**
+     * Data and parity fragments together: how many {@link #next()} produces.
+     */
+    public int getTotalFragmentCount() {
+        return mFragmentCount + mParityCount;
+    }
+
+    public int getDataPerFragment() {
+        return mDataPerFragment;
+    }
+
+    /**
+     * The id as sent: its low 8 bits in version 1, 16 in version 2.
+     */
+    public int getMessageId() {
+        return mMessageId;
+    }
+
+    public int getHeaderVersion() {
+        return mVersion;
+    }
+
+    public int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    public boolean hasNext() {
+        return mNext < mFragmentCount + mParityCount;
+    }
+
+    /**
+     * Length of fragment {@code index}, header included. Parity fragments follow the data.
+     */
+    public int fragmentLength(int index) {
+        if (index >= mFragmentCount) {
+            return mHeaderSize + PARITY_HEADER_SIZE + mDataPerFragment;
+        }
+        int start = index * mDataPerFragment;
+        return mHeaderSize + Math.min(mDataPerFragment, mMessage.length - start);
+    }
+
+    /**
+     * @return the next fragment in a new array.
+     */
+    public byte[] next() {
+        if (!hasNext()) {
+            throw new IllegalStateException("All " + getTotalFragmentCount() + " fragments were already produced");
+        }
+
+        byte[] fragment = new byte[fragmentLength(mNext)];
+        next(fragment, 0);
+        return fragment;
+    }
+
+    /**
+     * Writes the next fragment into {@code destination}, which needs room for
+     * {@link #fragmentLength(int)} bytes.
+     *
+     * @return the number of bytes written.
+     */
+    public int next(byte[] destination, int offset) {
+        if (!hasNext()) {
+            throw new IllegalStateException("All " + getTotalFragmentCount() + " fragments were already produced");
+        }
+
+        int index = mNext++;
+        writeHeader(destination, offset, index);
+        if (index >= mFragmentCount) {
+            int row = index - mFragmentCount;
+            destination[offset + mHeaderSize] = (byte) mMessage.length;
+            destination[offset + mHeaderSize + 1] = (byte) (mMessage.length >>> 8);
+            System.arraycopy(mParity, row * mDataPerFragment, destination, offset + mHeaderSize + PARITY_HEADER_SIZE,
+                             mDataPerFragment);
+            return mHeaderSize + PARITY_HEADER_SIZE + mDataPerFragment;
+        }
+
+        int start = index * mDataPerFragment;
+        int length = Math.min(mDataPerFragment, mMessage.length - start);
+        System.arraycopy(mMessage, start, destination, offset + mHeaderSize, length);
+        return mHeaderSize + length;
+    }
+
+    private void writeHeader(byte[] destination, int offset, int index) {
+        if (mVersion == VERSION_1) {
+            destination[offset] = (byte) mFragmentCount;
+            destination[offset + 1] = (byte) index;
+            destination[offset + 2] = (byte) mMessageId;
+            return;
+        }
+        destination[offset] = 0;
+        destination[offset + 1] = (byte) (VERSION_2 << 4 | mFlags);
+        destination[offset + 2] = (byte) mMessageId;
+        destination[offset + 3] = (byte) (mMessageId >>> 8);
+        destination[offset + 4] = (byte) mFragmentCount;
+        destination[offset + 5] = (byte) (mFragmentCount >>> 8);
+        destination[offset + 6] = (byte) index;
+        destination[offset + 7] = (byte) (index >>> 8);
+    }
+}
@@ -0,0 +1,138 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with preset dictionaries, for messages compressed before they are fragmented.
+ *
+ * A compressed message is {@code [dictionary id][raw deflate stream]}; id 0 means no dictionary.
+ * Both ends must have registered the same dictionary under the same id. Raw deflate carries no
+ * checksum of its own, so compressed messages travel only in version 2 fragments: their
+ * {@link FragmentEncoder#FLAG_COMPRESSED} says to inflate, and the message CRC-32 is checked first.
+ *
+ * Dictionaries are registered from any thread and read by every decoder sharing the instance.
+ */
+public final class MessageCompression {
+
+    public static final int NO_DICTIONARY = 0;
+    public static final int MAX_DICTIONARY_ID = 255;
+
+    // Inflated messages past this are dropped rather than grown without bound
+    public static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+
+    private volatile byte[][] mDictionaries = new byte[MAX_DICTIONARY_ID + 1][];
+
+    /**
+     * Registers {@code dictionary} under {@code id}, replacing the previous one; null removes it.
+     * Deflate only looks back 32 KiB, so the end of a longer dictionary is what counts.
+     */
+    public synchronized void registerDictionary(int id, byte[] dictionary) {
+        if (id <= NO_DICTIONARY || id > MAX_DICTIONARY_ID) {
+            throw new IllegalArgumentException("Dictionary id must be between 1 and " + MAX_DICTIONARY_ID);
+        }
+        byte[][] dictionaries = mDictionaries.clone();
+        dictionaries[id] = dictionary == null ? null : dictionary.clone();
+        mDictionaries = dictionaries;
+    }
+
+    public boolean hasDictionary(int id) {
+        return id > NO_DICTIONARY && id <= MAX_DICTIONARY_ID && mDictionaries[id] != null;
+    }
+
+    /**
+     * @return the compressed message, or null when it would not be smaller than {@code message}.
+     * @throws IllegalArgumentException when {@code dictionaryId} is not registered.
+     */
+    public byte[] compress(byte[] message, int dictionaryId) {
+        byte[] dictionary = null;
+        if (dictionaryId != NO_DICTIONARY) {
+            if (!hasDictionary(dictionaryId)) {
+                throw new IllegalArgumentException("No compression dictionary registered as " + dictionaryId);
+            }
+            dictionary = mDictionaries[dictionaryId];
+        }
+
+        if (message.length < 2) {
+            return null;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(message);
+            deflater.finish();
+
+            // Anything longer than the message is useless, so stop there
+            byte[] output = new byte[message.length];
+            int length = 1;
+            while (!deflater.finished()) {
+                if (length >= output.length) {
+                    return null;
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (length >= message.length) {
+                return null;
+            }
+            output[0] = (byte) dictionaryId;
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the original message, or null when the bytes are not a complete compressed message,
+     *         name a dictionary that is not registered, or inflate past {@link #MAX_MESSAGE_LENGTH}.
+     */
+    public byte[] decompress(byte[] src, int offset, int length) {
+        if (length < 2) {
+            return null;
+        }
+
+        int dictionaryId = src[offset] & 0xFF;
+        byte[] dictionary = null;
+        if (dictionaryId != NO_DICTIONARY) {
+            dictionary = mDictionaries[dictionaryId];
+            if (dictionary == null) {
+                return null;
+            }
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            // Raw inflate may want one byte past the stream to see its end
+            byte[] input = Arrays.copyOfRange(src, offset + 1, offset + length + 1);
+            inflater.setInput(input);
+
+            byte[] output = new byte[Math.min(MAX_MESSAGE_LENGTH, Math.max(64, length * 4))];
+            int total = 0;
+            while (!inflater.finished()) {
+                if (total == output.length) {
+                    if (output.length == MAX_MESSAGE_LENGTH) {
+                        return null;
+                    }
+                    output = Arrays.copyOf(output, Math.min(MAX_MESSAGE_LENGTH, output.length * 2));
+                }
+                int inflated = inflater.inflate(output, total, output.length - total);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                total += inflated;
+            }
+            return Arrays.copyOf(output, total);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
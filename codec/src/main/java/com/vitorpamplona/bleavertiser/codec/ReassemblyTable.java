@@ -0,0 +1,390 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+import java.util.Arrays;
+
+/**
+ * Reassembles multi-packet messages on the scan path without per-fragment allocation.
+ *
+ * Messages in flight live in a fixed-capacity open-addressing table keyed by a packed long
+ * (48-bit device address, 16-bit message id). Each entry tracks the fragments it has seen in
+ * a bitset and copies every new fragment straight to its final offset, so a duplicate costs one
+ * bit test and a message is complete when the bitset's population reaches the fragment count.
+ * Entries and their buffers are recycled; only a completed message is copied out.
+ *
+ * Messages sent with parity (see {@link ErasureCode}) park their parity fragments next to the
+ * data and complete as soon as data and parity together reach the data fragment count; the
+ * missing data fragments are then rebuilt in the buffer.
+ */
+class ReassemblyTable {
+
+    static final int INCOMPLETE = 0;
+    static final int COMPLETE = 1;
+    static final int DUPLICATE = 2;
+    static final int REJECTED = 3;
+
+    private static class Entry {
+        long key;
+        int totalFragments;
+        int receivedFragments;   // popcount of bits, kept as fragments arrive
+        int stride;              // bytes per non-final fragment, 0 until one has been seen
+        int lastLength = -1;     // length of the final fragment, -1 until seen
+        long firstSeenTime;
+        long[] bits = new long[4];
+        byte[] buffer = new byte[0];
+        byte[] tail = new byte[0]; // final fragment parked until the stride is known
+        int parityCount;
+        int messageLength = -1;  // carried by parity fragments, -1 until one has been seen
+        int[] parityRows = new int[0];
+        byte[] parity = new byte[0];
+
+        void reset(long key, int totalFragments, long now) {
+            this.key = key;
+            this.totalFragments = totalFragments;
+            this.receivedFragments = 0;
+            this.stride = 0;
+            this.lastLength = -1;
+            this.firstSeenTime = now;
+            this.parityCount = 0;
+            this.messageLength = -1;
+
+            // Parity fragments take the bits past the data fragments, up to 255
+            int words = Math.max(4, (totalFragments + 63) >>> 6);
+            if (bits.length < words) {
+                bits = new long[words];
+            } else {
+                Arrays.fill(bits, 0, words, 0L);
+            }
+        }
+
+        int length() {
+            return (totalFragments - 1) * stride + lastLength;
+        }
+    }
+
+    private final long[] mKeys;
+    private final Entry[] mEntries;
+    private final Entry[] mFreeEntries;
+    private final int mMask;
+    private int mFreeCount;
+    private int mSize;
+    private byte[] mCompleted;
+    private int mCompletedRecovered;
+    private int[] mMissing = new int[0];
+
+    /**
+     * @param capacity maximum number of messages reassembled at once, rounded up to a power of two.
+     */
+    ReassemblyTable(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        // Keys use all 64 bits (48 of address, 16 of id), so a null entry marks an empty slot
+        mKeys = new long[slots * 2]; // keep the load factor at or below one half
+        mEntries = new Entry[mKeys.length];
+        mFreeEntries = new Entry[slots];
+        mMask = mKeys.length - 1;
+    }
+
+    /**
+     * Packs a device address and message id into a table key.
+     */
+    static long key(long address, int messageId) {
+        return (address << 16) | (messageId & 0xFFFF);
+    }
+
+    /**
+     * Parses "AA:BB:CC:DD:EE:FF" into its 48-bit value without allocating.
+     */
+    static long parseAddress(String address) {
+        long value = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                value = (value << 4) | digit;
+            }
+        }
+        return value & 0xFFFFFFFFFFFFL;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Adds one fragment.
+     *
+     * @return COMPLETE when this fragment finished its message (read it with
+     *         {@link #takeCompleted()}), DUPLICATE when it was already held, REJECTED when it
+     *         cannot belong to a well-formed message, INCOMPLETE otherwise.
+     */
+    synchronized int offer(long key, int totalFragments, int index, byte[] src, int offset, int length, long now) {
+        if (totalFragments < 1 || index < 0 || index >= totalFragments) {
+            return REJECTED;
+        }
+
+        Entry entry = find(key);
+
+        if (entry != null && entry.totalFragments != totalFragments) {
+            // Same id reused for a different message: start over
+            entry.reset(key, totalFragments, now);
+        }
+
+        if (entry == null) {
+            entry = insert(key, now);
+            entry.reset(key, totalFragments, now);
+        }
+
+        long bit = 1L << (index & 63);
+        int word = index >>> 6;
+        if ((entry.bits[word] & bit) != 0) {
+            return DUPLICATE;
+        }
+
+        boolean last = index == totalFragments - 1;
+        if (last && entry.stride != 0 && length > entry.stride) {
+            return REJECTED;
+        }
+
+        if (!last) {
+            if (entry.stride == 0 && entry.lastLength > length) {
+                // The parked final fragment is longer than this one: they cannot be the same message
+                entry.reset(key, totalFragments, now);
+            }
+
+            if (entry.stride == 0) {
+                entry.stride = length;
+                ensureBuffer(entry);
+                if (entry.lastLength >= 0) {
+                    System.arraycopy(entry.tail, 0, entry.buffer, (totalFragments - 1) * length, entry.lastLength);
+                }
+            } else if (entry.stride != length) {
+                // Fragments from two different messages: start over with this one
+                entry.reset(key, totalFragments, now);
+                return offer(key, totalFragments, index, src, offset, length, now);
+            }
+            System.arraycopy(src, offset, entry.buffer, index * entry.stride, length);
+        } else {
+            entry.lastLength = length;
+            if (entry.stride == 0) {
+                if (entry.tail.length < length) entry.tail = new byte[length];
+                System.arraycopy(src, offset, entry.tail, 0, length);
+            } else {
+                ensureBuffer(entry);
+                System.arraycopy(src, offset, entry.buffer, index * entry.stride, length);
+            }
+        }
+
+        entry.bits[word] |= bit;
+        entry.receivedFragments++;
+
+        if (entry.receivedFragments < totalFragments) {
+            return canRecover(entry) ? recover(entry) : INCOMPLETE;
+        }
+
+        mCompleted = entry.stride == 0 ? Arrays.copyOf(entry.tail, entry.lastLength)
+                                       : Arrays.copyOf(entry.buffer, entry.length());
+        mCompletedRecovered = 0;
+        remove(key);
+        return COMPLETE;
+    }
+
+    /**
+     * Adds one parity fragment of a message of {@code totalFragments} data fragments.
+     *
+     * @param parityRow     the fragment's row in the {@link ErasureCode}.
+     * @param length        parity bytes, which is also the message's stride.
+     * @param messageLength the message's length, as the parity fragment carries it.
+     * @return as {@link #offer}.
+     */
+    synchronized int offerParity(long key, int totalFragments, int parityRow, byte[] src, int offset, int length,
+                                 int messageLength, long now) {
+        if (totalFragments < 2 || parityRow < 0 || totalFragments + parityRow > 255 || length < 1
+            || messageLength <= (totalFragments - 1) * length || messageLength > totalFragments * length) {
+            return REJECTED;
+        }
+
+        Entry entry = find(key);
+
+        if (entry != null && entry.totalFragments != totalFragments) {
+            entry.reset(key, totalFragments, now);
+        }
+
+        if (entry == null) {
+            entry = insert(key, now);
+            entry.reset(key, totalFragments, now);
+        }
+
+        int index = totalFragments + parityRow;
+        long bit = 1L << (index & 63);
+        int word = index >>> 6;
+        if ((entry.bits[word] & bit) != 0) {
+            return DUPLICATE;
+        }
+
+        if ((entry.stride != 0 && entry.stride != length) || entry.lastLength > length
+            || (entry.messageLength >= 0 && entry.messageLength != messageLength)) {
+            // Fragments from two different messages: start over with this one
+            entry.reset(key, totalFragments, now);
+        }
+
+        if (entry.stride == 0) {
+            entry.stride = length;
+            ensureBuffer(entry);
+            if (entry.lastLength >= 0) {
+                System.arraycopy(entry.tail, 0, entry.buffer, (totalFragments - 1) * length, entry.lastLength);
+            }
+        }
+        entry.messageLength = messageLength;
+
+        if (entry.parityRows.length == entry.parityCount) {
+            entry.parityRows = Arrays.copyOf(entry.parityRows, Math.max(4, entry.parityCount * 2));
+        }
+        if (entry.parity.length < (entry.parityCount + 1) * length) {
+            entry.parity = Arrays.copyOf(entry.parity, Math.max(4, entry.parityCount * 2) * length);
+        }
+        entry.parityRows[entry.parityCount] = parityRow;
+        System.arraycopy(src, offset, entry.parity, entry.parityCount * length, length);
+        entry.parityCount++;
+        entry.bits[word] |= bit;
+
+        return canRecover(entry) ? recover(entry) : INCOMPLETE;
+    }
+
+    private static boolean canRecover(Entry entry) {
+        return entry.parityCount > 0 && entry.receivedFragments + entry.parityCount >= entry.totalFragments;
+    }
+
+    /**
+     * Rebuilds the missing data fragments of an entry holding enough parity, and completes it.
+     */
+    private int recover(Entry entry) {
+        int total = entry.totalFragments;
+        int stride = entry.stride;
+
+        if (entry.lastLength >= 0) {
+            // The parity covers the final fragment zero-padded to the stride
+            Arrays.fill(entry.buffer, (total - 1) * stride + entry.lastLength, total * stride, (byte) 0);
+        }
+
+        if (mMissing.length < total) mMissing = new int[total];
+        int missing = 0;
+        for (int i = 0; i < total; i++) {
+            if ((entry.bits[i >>> 6] & (1L << (i & 63))) == 0) {
+                mMissing[missing++] = i;
+            }
+        }
+
+        ErasureCode.recover(entry.buffer, total, stride, mMissing, missing, entry.parityRows, entry.parity);
+
+        mCompleted = Arrays.copyOf(entry.buffer, entry.messageLength);
+        mCompletedRecovered = missing;
+        remove(entry.key);
+        return COMPLETE;
+    }
+
+    /**
+     * The message completed by the last {@link #offer} that returned COMPLETE.
+     */
+    synchronized byte[] takeCompleted() {
+        byte[] completed = mCompleted;
+        mCompleted = null;
+        return completed;
+    }
+
+    /**
+     * Number of data fragments the last completed message had rebuilt from parity.
+     */
+    synchronized int recoveredFragments() {
+        return mCompletedRecovered;
+    }
+
+    /**
+     * Drops messages that have been incomplete for longer than {@code timeoutMs}.
+     *
+     * @return the number of messages dropped.
+     */
+    synchronized int expire(long now, long timeoutMs) {
+        int expired = 0;
+        for (int slot = 0; slot < mKeys.length; ) {
+            Entry entry = mEntries[slot];
+            if (entry != null && now - entry.firstSeenTime > timeoutMs) {
+                // The backward shift may move another entry into this slot, so look at it again
+                remove(mKeys[slot]);
+                expired++;
+            } else {
+                slot++;
+            }
+        }
+        return expired;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    private static void ensureBuffer(Entry entry) {
+        int capacity = entry.totalFragments * entry.stride;
+        if (entry.buffer.length < capacity) {
+            entry.buffer = new byte[capacity];
+        }
+    }
+
+    private Entry find(long key) {
+        for (int slot = hash(key) & mMask; mEntries[slot] != null; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == key) return mEntries[slot];
+        }
+        return null;
+    }
+
+    private Entry insert(long key, long now) {
+        if (mSize == mFreeEntries.length) {
+            evictOldest();
+        }
+
+        int slot = hash(key) & mMask;
+        while (mEntries[slot] != null) {
+            slot = (slot + 1) & mMask;
+        }
+
+        Entry entry = mFreeCount > 0 ? mFreeEntries[--mFreeCount] : new Entry();
+        mKeys[slot] = key;
+        mEntries[slot] = entry;
+        mSize++;
+        return entry;
+    }
+
+    private void evictOldest() {
+        int oldest = -1;
+        for (int slot = 0; slot < mKeys.length; slot++) {
+            if (mEntries[slot] != null && (oldest < 0 || mEntries[slot].firstSeenTime < mEntries[oldest].firstSeenTime)) {
+                oldest = slot;
+            }
+        }
+        remove(mKeys[oldest]);
+    }
+
+    private void remove(long key) {
+        int slot = hash(key) & mMask;
+        while (mEntries[slot] != null && mKeys[slot] != key) {
+            slot = (slot + 1) & mMask;
+        }
+        if (mEntries[slot] == null) return;
+
+        mFreeEntries[mFreeCount++] = mEntries[slot];
+        mSize--;
+
+        // Backward-shift deletion keeps every probe chain unbroken without tombstones
+        int hole = slot;
+        for (int next = (hole + 1) & mMask; mEntries[next] != null; next = (next + 1) & mMask) {
+            int home = hash(mKeys[next]) & mMask;
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                mKeys[hole] = mKeys[next];
+                mEntries[hole] = mEntries[next];
+                hole = next;
+            }
+        }
+        mEntries[hole] = null;
+    }
+}
@@ -0,0 +1,418 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FragmentDecoderTest {
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final long REEMIT_MS = 5000;
+
+    private static byte[] message(int length, int seed) {
+        byte[] message = new byte[length];
+        new Random(seed).nextBytes(message);
+        return message;
+    }
+
+    private static List<byte[]> encode(byte[] message, int messageId, int maxFragmentLength) {
+        return encode(message, messageId, maxFragmentLength, 0);
+    }
+
+    private static List<byte[]> encode(byte[] message, int messageId, int maxFragmentLength, double redundancy) {
+        List<byte[]> fragments = new ArrayList<>();
+        FragmentEncoder encoder = new FragmentEncoder(message, messageId, maxFragmentLength, redundancy);
+        while (encoder.hasNext()) {
+            fragments.add(encoder.next());
+        }
+        return fragments;
+    }
+
+    private static List<byte[]> encodeV2(byte[] message, int messageId, double redundancy, boolean compressed) {
+        List<byte[]> fragments = new ArrayList<>();
+        FragmentEncoder encoder = new FragmentEncoder(message, messageId, 31, redundancy, FragmentEncoder.VERSION_2,
+                                                      compressed);
+        while (encoder.hasNext()) {
+            fragments.add(encoder.next());
+        }
+        return fragments;
+    }
+
+    /**
+     * Offers fragments until one finishes the message, and returns what it did.
+     */
+    private static int offerAll(FragmentDecoder decoder, List<byte[]> fragments) {
+        int status = FragmentDecoder.INCOMPLETE;
+        for (byte[] fragment : fragments) {
+            status = decoder.offer(ADDRESS, fragment, 0);
+            if (status == FragmentDecoder.COMPLETE || status == FragmentDecoder.CORRUPTED) break;
+        }
+        return status;
+    }
+
+    private static FragmentDecoder decoder() {
+        return new FragmentDecoder(16, 64, REEMIT_MS);
+    }
+
+    private static FragmentDecoder decoderV2() {
+        FragmentDecoder decoder = decoder();
+        decoder.setHeaderVersion(FragmentEncoder.VERSION_2);
+        return decoder;
+    }
+
+    @Test
+    public void reassemblesInOrder() {
+        byte[] message = message(100, 1);
+        List<byte[]> fragments = encode(message, 7, 31);
+        FragmentDecoder decoder = decoder();
+
+        for (int i = 0; i < fragments.size() - 1; i++) {
+            assertEquals(FragmentDecoder.INCOMPLETE, decoder.offer(ADDRESS, fragments.get(i), 0));
+        }
+        assertEquals(FragmentDecoder.COMPLETE, decoder.offer(ADDRESS, fragments.get(fragments.size() - 1), 0));
+        assertArrayEquals(message, decoder.takeMessage());
+        assertEquals(fragments.size(), decoder.getMessageFragmentCount());
+        assertEquals(0, decoder.inFlight());
+    }
+
+    @Test
+    public void reassemblesInAnyOrder() {
+        Random random = new Random(2);
+        for (int round = 0; round < 200; round++) {
+            byte[] message = message(29 + random.nextInt(500), round);
+            List<byte[]> fragments = encode(message, round, 31);
+            Collections.shuffle(fragments, random);
+
+            FragmentDecoder decoder = decoder();
+            int status = FragmentDecoder.INCOMPLETE;
+            for (byte[] fragment : fragments) {
+                status = decoder.offer(ADDRESS, fragment, 0);
+            }
+            assertEquals(FragmentDecoder.COMPLETE, status);
+            assertArrayEquals(message, decoder.takeMessage());
+        }
+    }
+
+    @Test
+    public void reportsDuplicates() {
+        List<byte[]> fragments = encode(message(80, 3), 1, 31);
+        FragmentDecoder decoder = decoder();
+
+        decoder.offer(ADDRESS, fragments.get(0), 0);
+        assertEquals(FragmentDecoder.DUPLICATE, decoder.offer(ADDRESS, fragments.get(0), 0));
+    }
+
+    @Test
+    public void suppressesDeliveredMessageUntilReemitInterval() {
+        byte[] message = message(80, 4);
+        List<byte[]> fragments = encode(message, 9, 31);
+        FragmentDecoder decoder = decoder();
+
+        for (byte[] fragment : fragments) {
+            decoder.offer(ADDRESS, fragment, 0);
+        }
+        assertArrayEquals(message, decoder.takeMessage());
+
+        assertEquals(FragmentDecoder.ALREADY_DELIVERED, decoder.offer(ADDRESS, fragments.get(0), 1000));
+
+        int status = FragmentDecoder.INCOMPLETE;
+        for (byte[] fragment : fragments) {
+            status = decoder.offer(ADDRESS, fragment, REEMIT_MS + 1);
+        }
+        assertEquals(FragmentDecoder.COMPLETE, status);
+    }
+
+    @Test
+    public void keepsDevicesApart() {
+        byte[] first = message(60, 5);
+        byte[] second = message(60, 6);
+        List<byte[]> a = encode(first, 3, 31);
+        List<byte[]> b = encode(second, 3, 31);
+        FragmentDecoder decoder = decoder();
+
+        for (int i = 0; i < a.size() - 1; i++) {
+            decoder.offer("11:11:11:11:11:11", a.get(i), 0);
+            decoder.offer("22:22:22:22:22:22", b.get(i), 0);
+        }
+        assertEquals(2, decoder.inFlight());
+
+        assertEquals(FragmentDecoder.COMPLETE, decoder.offer("22:22:22:22:22:22", b.get(b.size() - 1), 0));
+        assertArrayEquals(second, decoder.takeMessage());
+        assertEquals(FragmentDecoder.COMPLETE, decoder.offer("11:11:11:11:11:11", a.get(a.size() - 1), 0));
+        assertArrayEquals(first, decoder.takeMessage());
+    }
+
+    @Test
+    public void lastFragmentFirstStillCompletes() {
+        byte[] message = message(70, 7);
+        List<byte[]> fragments = encode(message, 2, 31);
+        Collections.reverse(fragments);
+        FragmentDecoder decoder = decoder();
+
+        int status = FragmentDecoder.INCOMPLETE;
+        for (byte[] fragment : fragments) {
+            status = decoder.offer(ADDRESS, fragment, 0);
+        }
+        assertEquals(FragmentDecoder.COMPLETE, status);
+        assertArrayEquals(message, decoder.takeMessage());
+    }
+
+    @Test
+    public void recoversFromAnyDataFragmentCountOfFragments() {
+        Random random = new Random(9);
+        for (int round = 0; round < 200; round++) {
+            byte[] message = message(29 + random.nextInt(400), round);
+            List<byte[]> fragments = encode(message, round, 31, 0.1 + random.nextDouble() * 0.5);
+            int dataFragments = fragments.get(0)[0];
+
+            Collections.shuffle(fragments, random);
+            List<byte[]> received = fragments.subList(0, dataFragments);
+            int lostData = 0;
+            for (byte[] fragment : received) {
+                if ((fragment[1] & 0xFF) >= dataFragments) lostData++;
+            }
+
+            FragmentDecoder decoder = decoder();
+            for (int i = 0; i < dataFragments - 1; i++) {
+                assertEquals(FragmentDecoder.INCOMPLETE, decoder.offer(ADDRESS, received.get(i), 0));
+            }
+            assertEquals(FragmentDecoder.COMPLETE, decoder.offer(ADDRESS, received.get(dataFragments - 1), 0));
+            assertArrayEquals(message, decoder.takeMessage());
+            assertEquals(lostData, decoder.getRecoveredFragmentCount());
+            assertEquals(0, decoder.inFlight());
+        }
+    }
+
+    @Test
+    public void parityOfDeliveredMessageIsSuppressed() {
+        byte[] message = message(100, 10);
+        List<byte[]> fragments = encode(message, 4, 31, 0.5);
+        FragmentDecoder decoder = decoder();
+
+        int status = FragmentDecoder.INCOMPLETE;
+        for (byte[] fragment : fragments) {
+            if (status == FragmentDecoder.COMPLETE) {
+                assertEquals(FragmentDecoder.ALREADY_DELIVERED, decoder.offer(ADDRESS, fragment, 0));
+            } else {
+                status = decoder.offer(ADDRESS, fragment, 0);
+            }
+        }
+        assertEquals(FragmentDecoder.COMPLETE, status);
+        assertArrayEquals(message, decoder.takeMessage());
+        assertEquals(0, decoder.getRecoveredFragmentCount());
+    }
+
+    @Test
+    public void reportsDuplicateParity() {
+        List<byte[]> fragments = encode(message(100, 11), 5, 31, 0.5);
+        byte[] parity = fragments.get(fragments.size() - 1);
+        FragmentDecoder decoder = decoder();
+
+        assertEquals(FragmentDecoder.INCOMPLETE, decoder.offer(ADDRESS, parity, 0));
+        assertEquals(FragmentDecoder.DUPLICATE, decoder.offer(ADDRESS, parity, 0));
+    }
+
+    private static byte[] json(int records) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            json.append("{\"sensor\":\"temperature\",\"unit\":\"celsius\",\"value\":").append(20 + i % 7).append("},");
+        }
+        return json.append("]").toString().getBytes();
+    }
+
+    @Test
+    public void inflatesCompressedMessages() {
+        byte[] dictionary = "{\"sensor\":\"temperature\",\"unit\":\"celsius\",\"value\":".getBytes();
+        MessageCompression compression = new MessageCompression();
+        compression.registerDictionary(3, dictionary);
+
+        byte[] message = json(20);
+        byte[] compressed = compression.compress(message, 3);
+        List<byte[]> fragments = encodeV2(compressed, 5, 0, true);
+        assertEquals(true, fragments.size() * 3 < FragmentEncoder.fragmentCount(message.length, 28));
+
+        FragmentDecoder decoder = decoderV2();
+        decoder.setCompression(compression);
+        assertEquals(FragmentDecoder.COMPLETE, offerAll(decoder, fragments));
+        assertArrayEquals(message, decoder.takeMessage());
+        assertEquals(true, decoder.wasDecompressed());
+    }
+
+    @Test
+    public void inflatesCompressedSingleFragment() {
+        MessageCompression compression = new MessageCompression();
+        compression.registerDictionary(3, json(1));
+        byte[] message = json(1);
+        List<byte[]> fragments = encodeV2(compression.compress(message, 3), 7, 0, true);
+        assertEquals(1, fragments.size());
+
+        FragmentDecoder decoder = decoderV2();
+        decoder.setCompression(compression);
+        assertEquals(FragmentDecoder.COMPLETE, decoder.offer(ADDRESS, fragments.get(0), 0));
+        assertArrayEquals(message, decoder.takeMessage());
+        assertEquals(FragmentDecoder.ALREADY_DELIVERED, decoder.offer(ADDRESS, fragments.get(0), 1000));
+    }
+
+    @Test
+    public void neverInflatesVersion1Messages() {
+        // A legacy id with its top bit set, and a payload that happens to inflate
+        MessageCompression compression = new MessageCompression();
+        byte[] message = compression.compress(json(20), MessageCompression.NO_DICTIONARY);
+        List<byte[]> fragments = encode(message, 0x90, 31);
+
+        FragmentDecoder decoder = decoder();
+        decoder.setCompression(compression);
+        assertEquals(FragmentDecoder.COMPLETE, offerAll(decoder, fragments));
+        assertArrayEquals(message, decoder.takeMessage());
+        assertEquals(false, decoder.wasDecompressed());
+        assertEquals(FragmentDecoder.SINGLE, decoder.offer(ADDRESS, new byte[] { 1, 0, (byte) 0x80, 7, 7 }, 0));
+    }
+
+    @Test
+    public void dropsMessagesThatDoNotInflate() {
+        byte[] message = message(100, 12);
+        List<byte[]> fragments = encodeV2(message, 0x90, 0, true);
+
+        FragmentDecoder decoder = decoderV2();
+        decoder.setCompression(new MessageCompression());
+        assertEquals(FragmentDecoder.NOT_INFLATED, offerAll(decoder, fragments));
+        assertNull(decoder.takeMessage());
+
+        FragmentDecoder withoutCompression = decoderV2();
+        assertEquals(FragmentDecoder.NOT_INFLATED, offerAll(withoutCompression, fragments));
+        assertNull(withoutCompression.takeMessage());
+    }
+
+    @Test
+    public void reassemblesMoreThan127Fragments() {
+        byte[] message = message(200 * 28, 13);
+        List<byte[]> fragments = encode(message, 6, 31);
+        assertEquals(200, fragments.size());
+
+        FragmentDecoder decoder = decoder();
+        assertEquals(FragmentDecoder.COMPLETE, offerAll(decoder, fragments));
+        assertArrayEquals(message, decoder.takeMessage());
+    }
+
+    @Test
+    public void reassemblesVersion2Messages() {
+        Random random = new Random(14);
+        for (int round = 0; round < 50; round++) {
+            byte[] message = message(1 + random.nextInt(8000), round);
+            List<byte[]> fragments = encodeV2(message, random.nextInt(0x10000), 0, false);
+            Collections.shuffle(fragments, random);
+
+            FragmentDecoder decoder = decoderV2();
+            assertEquals(FragmentDecoder.COMPLETE, offerAll(decoder, fragments));
+            assertArrayEquals(message, decoder.takeMessage());
+        }
+    }
+
+    @Test
+    public void keepsVersion2IdsSharingTheLowByteApart() {
+        byte[] first = message(100, 15);
+        byte[] second = message(100, 16);
+        List<byte[]> a = encodeV2(first, 0x0105, 0, false);
+        List<byte[]> b = encodeV2(second, 0x0205, 0, false);
+
+        FragmentDecoder decoder = decoderV2();
+        for (int i = 0; i < a.size() - 1; i++) {
+            decoder.offer(ADDRESS, a.get(i), 0);
+            decoder.offer(ADDRESS, b.get(i), 0);
+        }
+        assertEquals(FragmentDecoder.COMPLETE, decoder.offer(ADDRESS, a.get(a.size() - 1), 0));
+        assertArrayEquals(first, decoder.takeMessage());
+        assertEquals(FragmentDecoder.COMPLETE, decoder.offer(ADDRESS, b.get(b.size() - 1), 0));
+        assertArrayEquals(second, decoder.takeMessage());
+    }
+
+    @Test
+    public void reassemblesTheAllOnesKey() {
+        byte[] message = message(100, 19);
+        List<byte[]> fragments = encodeV2(message, 0xFFFF, 0, false);
+        assertEquals(-1L, ReassemblyTable.key(FragmentDecoder.parseAddress("FF:FF:FF:FF:FF:FF"), 0xFFFF));
+
+        FragmentDecoder decoder = decoderV2();
+        for (int i = 0; i < fragments.size() - 1; i++) {
+            assertEquals(FragmentDecoder.INCOMPLETE, decoder.offer("FF:FF:FF:FF:FF:FF", fragments.get(i), 0));
+            assertEquals(FragmentDecoder.DUPLICATE, decoder.offer("FF:FF:FF:FF:FF:FF", fragments.get(i), 0));
+        }
+        assertEquals(1, decoder.inFlight());
+        assertEquals(FragmentDecoder.COMPLETE,
+                     decoder.offer("FF:FF:FF:FF:FF:FF", fragments.get(fragments.size() - 1), 0));
+        assertArrayEquals(message, decoder.takeMessage());
+        assertEquals(0, decoder.inFlight());
+    }
+
+    @Test
+    public void dropsVersion2MessagesFailingTheirCrc() {
+        List<byte[]> fragments = encodeV2(message(100, 17), 9, 0, false);
+        fragments.get(1)[10] ^= 1;
+
+        FragmentDecoder decoder = decoderV2();
+        assertEquals(FragmentDecoder.CORRUPTED, offerAll(decoder, fragments));
+        assertEquals(null, decoder.takeMessage());
+    }
+
+    @Test
+    public void recoversCompressedVersion2Messages() {
+        MessageCompression compression = new MessageCompression();
+        byte[] message = json(30);
+        List<byte[]> fragments = encodeV2(compression.compress(message, MessageCompression.NO_DICTIONARY), 0xBEEF,
+                                          0.5, true);
+        fragments.remove(0);
+
+        FragmentDecoder decoder = decoderV2();
+        decoder.setCompression(compression);
+        assertEquals(FragmentDecoder.COMPLETE, offerAll(decoder, fragments));
+        assertArrayEquals(message, decoder.takeMessage());
+        assertEquals(true, decoder.wasDecompressed());
+        assertEquals(1, decoder.getRecoveredFragmentCount());
+    }
+
+    @Test
+    public void readsVersion2OnlyWhenAllowed() {
+        byte[] plain = { 0, 0x20, 1, 0, 3, 0, 0, 0, 42, 43 };
+        assertEquals(FragmentDecoder.SINGLE, decoder().offer(ADDRESS, plain, 0));
+        assertEquals(FragmentDecoder.INCOMPLETE, decoderV2().offer(ADDRESS, plain, 0));
+
+        List<byte[]> fragments = encodeV2(message(100, 18), 9, 0, false);
+        FragmentDecoder decoder = decoder();
+        for (byte[] fragment : fragments) {
+            assertEquals(FragmentDecoder.SINGLE, decoder.offer(ADDRESS, fragment, 0));
+        }
+        assertEquals(FragmentDecoder.SINGLE, decoderV2().offer(ADDRESS, new byte[] { 0, 0x20, 1, 0, 0, 0, 0, 0 }, 0));
+    }
+
+    @Test
+    public void treatsShortOrSingleDataAsSingle() {
+        FragmentDecoder decoder = decoder();
+        assertEquals(FragmentDecoder.SINGLE, decoder.offer(ADDRESS, new byte[] { 5, 0 }, 0));
+        assertEquals(FragmentDecoder.SINGLE, decoder.offer(ADDRESS, new byte[] { 1, 0, 4, 9 }, 0));
+        assertEquals(FragmentDecoder.SINGLE, decoder.offer(ADDRESS, new byte[] { 2, 3, 4, 9 }, 0));
+    }
+
+    @Test
+    public void expiresIncompleteMessages() {
+        List<byte[]> fragments = encode(message(80, 8), 1, 31);
+        FragmentDecoder decoder = decoder();
+
+        decoder.offer(ADDRESS, fragments.get(0), 0);
+        assertEquals(0, decoder.expire(5000, 10000));
+        assertEquals(1, decoder.expire(10001, 10000));
+        assertEquals(0, decoder.inFlight());
+    }
+
+    @Test
+    public void parsesAddresses() {
+        assertEquals(0xAABBCCDDEEFFL, FragmentDecoder.parseAddress("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0x0123456789abL, FragmentDecoder.parseAddress("01:23:45:67:89:ab"));
+    }
+}
@@ -0,0 +1,160 @@
+package com.vitorpamplona.bleavertiser.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class FragmentEncoderTest {
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) (i * 7 + 1);
+        }
+        return message;
+    }
+
+    @Test
+    public void splitsIntoHeaderedFragments() {
+        byte[] message = message(60);
+        FragmentEncoder encoder = new FragmentEncoder(message, 0xAB, 31);
+
+        assertEquals(28, encoder.getDataPerFragment());
+        assertEquals(3, encoder.getFragmentCount());
+
+        byte[] first = encoder.next();
+        assertEquals(31, first.length);
+        assertEquals(3, first[0]);
+        assertEquals(0, first[1]);
+        assertEquals((byte) 0xAB, first[2]);
+        assertEquals(message[0], first[3]);
+
+        encoder.next();
+        byte[] last = encoder.next();
+        assertEquals(3 + 4, last.length);
+        assertEquals(2, last[1]);
+        assertEquals(message[59], last[6]);
+        assertFalse(encoder.hasNext());
+    }
+
+    @Test
+    public void writesIntoCallerBuffer() {
+        byte[] message = message(10);
+        FragmentEncoder encoder = new FragmentEncoder(message, 1, 8);
+        byte[] buffer = new byte[16];
+
+        int length = encoder.next(buffer, 4);
+        assertEquals(8, length);
+        assertEquals(2, buffer[4]);
+        assertEquals(0, buffer[5]);
+        assertEquals(1, buffer[6]);
+        assertEquals(message[0], buffer[7]);
+    }
+
+    @Test
+    public void exactMultipleHasNoEmptyTail() {
+        FragmentEncoder encoder = new FragmentEncoder(message(56), 0, 31);
+        assertEquals(2, encoder.getFragmentCount());
+        assertEquals(31, encoder.fragmentLength(1));
+    }
+
+    @Test
+    public void emptyMessageIsOneFragment() {
+        FragmentEncoder encoder = new FragmentEncoder(new byte[0], 0, 31);
+        assertEquals(1, encoder.getFragmentCount());
+        assertArrayEquals(new byte[] { 1, 0, 0 }, encoder.next());
+    }
+
+    @Test
+    public void rejectsMoreThan255Fragments() {
+        try {
+            new FragmentEncoder(new byte[256 * 28], 0, 31);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsFragmentsWithoutRoomForData() {
+        try {
+            new FragmentEncoder(new byte[10], 0, 3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void appendsParityFragments() {
+        byte[] message = message(60);
+        FragmentEncoder encoder = new FragmentEncoder(message, 0xAB, 31, 0.5);
+
+        assertEquals(26, encoder.getDataPerFragment());
+        assertEquals(3, encoder.getFragmentCount());
+        assertEquals(2, encoder.getParityCount());
+        assertEquals(5, encoder.getTotalFragmentCount());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, encoder.next()[1]);
+        }
+        byte[] parity = encoder.next();
+        assertEquals(31, parity.length);
+        assertEquals(3, parity[0]);
+        assertEquals(3, parity[1]);
+        assertEquals((byte) 0xAB, parity[2]);
+        assertEquals(60, parity[3]);
+        assertEquals(0, parity[4]);
+        assertEquals(4, encoder.next()[1]);
+        assertFalse(encoder.hasNext());
+    }
+
+    @Test
+    public void singleFragmentMessageGetsNoParity() {
+        FragmentEncoder encoder = new FragmentEncoder(message(28), 0, 31, 1);
+        assertEquals(1, encoder.getTotalFragmentCount());
+        assertEquals(28, encoder.getDataPerFragment());
+    }
+
+    @Test
+    public void writesVersion2HeadersAndCrc() {
+        byte[] message = message(40);
+        FragmentEncoder encoder = new FragmentEncoder(message, 0x1234, 31, 0, FragmentEncoder.VERSION_2, true);
+
+        assertEquals(23, encoder.getDataPerFragment());
+        assertEquals(2, encoder.getFragmentCount()); // 40 bytes + 4 of CRC
+
+        byte[] first = encoder.next();
+        assertArrayEquals(new byte[] { 0, 0x21, 0x34, 0x12, 2, 0, 0, 0 }, Arrays.copyOf(first, 8));
+        assertEquals(message[0], first[8]);
+
+        byte[] last = encoder.next();
+        assertEquals(8 + 44 - 23, last.length);
+        assertEquals(1, last[6]);
+        CRC32 crc = new CRC32();
+        crc.update(message);
+        assertEquals((byte) crc.getValue(), last[last.length - 4]);
+    }
+
+    @Test
+    public void countsPast255FragmentsInVersion2() {
+        FragmentEncoder encoder = new FragmentEncoder(new byte[300 * 23], 1, 31, 0, FragmentEncoder.VERSION_2, false);
+        assertEquals(301, encoder.getFragmentCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesCompressedVersion1Messages() {
+        new FragmentEncoder(message(40), 1, 31, 0, FragmentEncoder.VERSION_1, true);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsPastTheLastFragment() {
+        FragmentEncoder encoder = new FragmentEncoder(new byte[5], 0, 31);
+        encoder.next();
+        encoder.next();
+    }
+}
@@ -1,10 +1,53 @@
 export as namespace BLEAdvertiser;
 
+export type ScanField = 'deviceAddress' | 'rssi' | 'manufData' | 'serviceUuids' | 'txPower' | 'deviceName'
+    | 'advFlags' | 'scanRecord' | 'isLegacy' | 'isConnectable' | 'dataStatus' | 'primaryPhy' | 'secondaryPhy'
+    | 'smoothedRssi' | 'distance' | 'distanceConfidence' | 'sessionIds';
+
 export interface ScanOptions {
     numberOfMatches?: number;
     matchMode?: number;
     scanMode?: number;
     reportDelay?: number;
+    reemitInterval?: number;
+    dedupBloomFilter?: boolean;
+    batchSize?: number;
+    batchLatency?: number;
+    coalescing?: 'lossless' | 'latestPerDevice';
+    scanWorkers?: number;
+    scanQueueCapacity?: number;
+    scanQueuePolicy?: 'dropOldest' | 'dropDuplicate';
+    payloadEncoding?: 'array' | 'base64';
+    includeScanRecord?: boolean;
+    fields?: ScanField[];
+    filters?: ScanFilter[];
+    /** Emit a device only when it is new or its manufacturer data changed; overrides rssiThreshold and emitInterval. */
+    changesOnly?: boolean;
+    rssiThreshold?: number;
+    emitInterval?: number;
+    rssiFilter?: 'ewma' | 'kalman';
+    rssiAlpha?: number;
+    kalmanProcessNoise?: number;
+    kalmanMeasurementNoise?: number;
+    referenceRssi?: number;
+    pathLossExponent?: number;
+    delivery?: 'events' | 'ring';
+    ringCapacity?: number;
+    ringPayloadCapacity?: number;
+    headerVersion?: 1 | 2;
+}
+
+export interface ScanFilter {
+    deviceAddress?: string | string[];
+    manufacturerId?: number;
+    manufData?: number[] | string;
+    manufDataMask?: number[] | string;
+    serviceUuid?: string;
+    serviceUuidMask?: string;
+    serviceDataUuid?: string;
+    serviceData?: number[] | string;
+    serviceDataMask?: number[] | string;
+    minRssi?: number;
 }
 
 export interface BroadcastOptions {
@@ -13,16 +56,75 @@ export interface BroadcastOptions {
     includeDeviceName?: boolean;
     includeTxPowerLevel?: boolean;
     connectable?: boolean;
+    useExtendedAdvertising?: boolean;
+    inPlaceRotation?: boolean;
+    rotationInterval?: number;
+    adaptiveRotation?: boolean;
+    repetitionsPerFragment?: number;
+    /** Every set sends the whole message from its own address: redundancy, not bandwidth. */
+    parallelAdvertising?: boolean;
+    maxParallelSets?: number;
+    fecRatio?: number;
+    compress?: boolean;
+    compressionDictionary?: number;
+    headerVersion?: 1 | 2;
+}
+
+export interface AdvertisingCapabilities {
+    maxAdvertisingDataLength: number;
+    maxLegacyLength: number;
+    maxExtendedLength: number;
+    extendedAdvertising: boolean;
+    le2MPhy: boolean;
+    codedPhy: boolean;
+    probeDurationMs: number;
+    fromCache: boolean;
+}
+
+export interface Stats {
+    scanResults: number;
+    fragmentsParsed: number;
+    duplicateFragments: number;
+    messagesReassembled: number;
+    buffersExpired: number;
+    eventsEmitted: number;
+    advertiserStarts: number;
+    advertiserStops: number;
+    rotationTicks: number;
+    scanQueueOverflows: number;
+    scanQueueDuplicatesDropped: number;
+    eventsThrottled: number;
+    messagesRecovered: number;
+    fragmentsRecovered: number;
+    messagesDecompressed: number;
+    messagesCorrupted: number;
+    messagesNotInflated: number;
+    probeDurationMs: number;
+    messagesInFlight: number;
+    scanQueueDepth: number;
+    scanRecordsPending: number;
+    scanRecordsOverwritten: number;
 }
 
 export function setCompanyId(companyId: number): void;
 export function getMaxAdvertisingDataLength(): Promise<number>;
-export function broadcast(uid: String, manufData: number[], options?: BroadcastOptions): Promise<string>;
+export function getMaxPayloadLength(uid: String, options?: BroadcastOptions): Promise<number>;
+export function registerCompressionDictionary(id: number, dictionary: number[] | string | null): Promise<boolean>;
+export function invalidateCapabilitiesCache(): Promise<boolean>;
+export function reprobeCapabilities(): Promise<AdvertisingCapabilities>;
+export function broadcast(uid: String, manufData: number[] | string, options?: BroadcastOptions): Promise<string>;
 export function stopBroadcast(): Promise<string>;
 export function scan(manufDataFilter: number[], options?: ScanOptions): Promise<string>;
 export function scanByService(uidFilter: String, options?: ScanOptions): Promise<string>;
+export function flushScanResults(): Promise<string>;
+export function drainScanRecords(): string;
+export function startScanSession(filter: ScanFilter | ScanFilter[] | null, options?: ScanOptions): Promise<number>;
+export function stopScanSession(sessionId: number): Promise<boolean>;
 export function stopScan(): Promise<string>;
 export function enableAdapter(): void;
 export function disableAdapter(): void;
 export function getAdapterState(): Promise<string>;
 export function isActive(): Promise<boolean>;
+export function getStats(): Promise<Stats>;
+export function resetStats(): Promise<boolean>;
+export function setStatsInterval(intervalMs: number): void;